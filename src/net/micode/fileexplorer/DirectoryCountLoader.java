@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.Handler.Callback;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.widget.TextView;
+
+/**
+ * 职责：按需在后台计算目录中的文件数（FileInfo.Count）
+ * 只有被绑定到列表行上的目录才会计算；最近绑定的行最先计算，
+ * 行被复用给其他目录时旧的请求随之作废。结果按路径缓存，修改时间变化后失效
+ * */
+public class DirectoryCountLoader implements Callback {
+
+	private static final String LOADER_THREAD_NAME = "DirectoryCountLoader";
+
+	/**
+	 * 工作线程发给UI线程，表示有计数完成了
+	 * */
+	private static final int MESSAGE_COUNT_LOADED = 1;
+
+	private static final int MESSAGE_REQUEST_LOADING = 2;
+
+	private static final int MAX_CACHE_SIZE = 1024;
+
+	/**
+	 * 计数依赖的条件，任何一个不同都视为缓存失效
+	 * */
+	private static class CountEntry {
+		final long modified;
+
+		final FilenameFilter filter;
+
+		final boolean showHidden;
+
+		final int count;
+
+		CountEntry(long modified, FilenameFilter filter, boolean showHidden,
+				int count) {
+			this.modified = modified;
+			this.filter = filter;
+			this.showHidden = showHidden;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * 按访问顺序的LRU缓存，key是目录路径
+	 * */
+	private final LinkedHashMap<String, CountEntry> mCache = new LinkedHashMap<String, CountEntry>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CountEntry> eldest) {
+			return size() > MAX_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * 等待计数的<TextView,FileInfo>，同一个TextView重新绑定时旧的请求被替换
+	 * mPendingRequests和mQueue都由mPendingRequests的锁保护
+	 * */
+	private final HashMap<TextView, FileInfo> mPendingRequests = new HashMap<TextView, FileInfo>();
+
+	/**
+	 * 请求的顺序，工作线程从尾部取，即后绑定的先计算
+	 * */
+	private final ArrayList<TextView> mQueue = new ArrayList<TextView>();
+
+	private final Handler mMainThreadHandler = new Handler(this);
+
+	private HandlerThread mLoaderThread;
+
+	private Handler mLoaderThreadHandler;
+
+	private volatile FilenameFilter mFilter;
+
+	private volatile boolean mShowHidden;
+
+	/**
+	 * 避免同时有多个MESSAGE_COUNT_LOADED在队列中
+	 * */
+	private boolean mLoadedMessagePending;
+
+	/**
+	 * 目录切换时调用：设置计数条件，并丢弃上一个目录中还没完成的请求
+	 * */
+	public void setFilter(FilenameFilter filter, boolean showHidden) {
+		mFilter = filter;
+		mShowHidden = showHidden;
+		synchronized (mPendingRequests) {
+			mPendingRequests.clear();
+			mQueue.clear();
+		}
+	}
+
+	/**
+	 * 在UI线程中调用。缓存命中时立即显示，否则显示为空并排队计算
+	 * */
+	public void loadCount(TextView view, FileInfo info) {
+		int count = getCachedCount(info);
+		if (count != FileInfo.COUNT_UNKNOWN) {
+			info.Count = count;
+		}
+		if (info.Count != FileInfo.COUNT_UNKNOWN) {
+			cancelRequest(view);
+			setCountText(view, info.Count);
+			return;
+		}
+
+		view.setText("");
+		synchronized (mPendingRequests) {
+			mPendingRequests.put(view, info);
+			mQueue.remove(view);
+			mQueue.add(view);
+		}
+		requestLoading();
+	}
+
+	public void cancelRequest(TextView view) {
+		synchronized (mPendingRequests) {
+			if (mPendingRequests.remove(view) != null) {
+				mQueue.remove(view);
+			}
+		}
+	}
+
+	/**
+	 * 结束工作线程，清空请求和缓存
+	 * */
+	public void stop() {
+		if (mLoaderThread != null) {
+			mLoaderThread.quit();
+			mLoaderThread = null;
+			mLoaderThreadHandler = null;
+		}
+		synchronized (mPendingRequests) {
+			mPendingRequests.clear();
+			mQueue.clear();
+		}
+		synchronized (mCache) {
+			mCache.clear();
+		}
+	}
+
+	private static void setCountText(TextView view, int count) {
+		view.setText("(" + count + ")");
+	}
+
+	private int getCachedCount(FileInfo info) {
+		synchronized (mCache) {
+			CountEntry entry = mCache.get(info.filePath);
+			if (entry != null && entry.modified == info.ModifiedDate
+					&& entry.filter == mFilter
+					&& entry.showHidden == mShowHidden) {
+				return entry.count;
+			}
+		}
+		return FileInfo.COUNT_UNKNOWN;
+	}
+
+	private void requestLoading() {
+		if (mLoaderThread == null) {
+			mLoaderThread = new HandlerThread(LOADER_THREAD_NAME);
+			mLoaderThread.start();
+			mLoaderThreadHandler = new Handler(mLoaderThread.getLooper(), this);
+		}
+		if (!mLoaderThreadHandler.hasMessages(MESSAGE_REQUEST_LOADING)) {
+			mLoaderThreadHandler.sendEmptyMessage(MESSAGE_REQUEST_LOADING);
+		}
+	}
+
+	/**
+	 * MESSAGE_REQUEST_LOADING在工作线程中处理，MESSAGE_COUNT_LOADED在UI线程中处理
+	 * */
+	public boolean handleMessage(Message msg) {
+		switch (msg.what) {
+		case MESSAGE_REQUEST_LOADING:
+			loadPendingCounts();
+			return true;
+		case MESSAGE_COUNT_LOADED:
+			synchronized (mMainThreadHandler) {
+				mLoadedMessagePending = false;
+			}
+			processLoadedCounts();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 工作线程：一直计算到队列为空
+	 * */
+	private void loadPendingCounts() {
+		while (true) {
+			FileInfo info;
+			synchronized (mPendingRequests) {
+				if (mQueue.isEmpty())
+					return;
+				TextView view = mQueue.remove(mQueue.size() - 1);
+				info = mPendingRequests.get(view);
+			}
+			if (info == null || getCachedCount(info) != FileInfo.COUNT_UNKNOWN) {
+				notifyLoaded();
+				continue;
+			}
+
+			FilenameFilter filter = mFilter;
+			boolean showHidden = mShowHidden;
+			int count = countChildren(new File(info.filePath), filter,
+					showHidden);
+			synchronized (mCache) {
+				mCache.put(info.filePath, new CountEntry(info.ModifiedDate,
+						filter, showHidden, count));
+			}
+			notifyLoaded();
+		}
+	}
+
+	private void notifyLoaded() {
+		synchronized (mMainThreadHandler) {
+			if (mLoadedMessagePending)
+				return;
+			mLoadedMessagePending = true;
+		}
+		mMainThreadHandler.sendEmptyMessage(MESSAGE_COUNT_LOADED);
+	}
+
+	/**
+	 * UI线程：把已经算好的计数填到对应的TextView上
+	 * */
+	private void processLoadedCounts() {
+		synchronized (mPendingRequests) {
+			Iterator<Map.Entry<TextView, FileInfo>> iterator = mPendingRequests
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<TextView, FileInfo> e = iterator.next();
+				FileInfo info = e.getValue();
+				int count = getCachedCount(info);
+				if (count == FileInfo.COUNT_UNKNOWN)
+					continue;
+
+				info.Count = count;
+				setCountText(e.getKey(), count);
+				iterator.remove();
+				mQueue.remove(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * 与原先Util.GetFileInfo中的计数规则一致；无法访问的目录计为0
+	 * */
+	private static int countChildren(File dir, FilenameFilter filter,
+			boolean showHidden) {
+		File[] files = dir.listFiles(filter);
+		if (files == null)
+			return 0;
+
+		int count = 0;
+		for (File child : files) {
+			if ((!child.isHidden() || showHidden)
+					&& Util.isNormalFile(child.getAbsolutePath())) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
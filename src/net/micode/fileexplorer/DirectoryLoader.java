@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+/**
+ * 职责：在后台线程中加载目录，分批把FileInfo交给UI线程
+ * 第一批很小，保证第一屏立刻出现，其余的按时间或数量分批追加；
+ * 切换到其他目录时调用cancel，已经发出的批次由监听者按loader是否过期丢弃；
+ * 目录快照有效时直接一次性交出，不再stat每个文件
+ * */
+public class DirectoryLoader extends AsyncTask<Void, ArrayList<FileInfo>, Boolean> {
+	/**
+	 * 第一批的数量，大约一屏
+	 * */
+	private static final int FIRST_BATCH_SIZE = 20;
+
+	private static final int MAX_BATCH_SIZE = 500;
+
+	private static final long BATCH_INTERVAL_MS = 150;
+
+	public interface Listener {
+		/**
+		 * UI线程中回调
+		 * */
+		void onBatchLoaded(DirectoryLoader loader, ArrayList<FileInfo> batch);
+
+		/**
+		 * UI线程中回调，目录无法访问时success为false；被取消时不回调
+		 * */
+		void onLoadFinished(DirectoryLoader loader, boolean success);
+	}
+
+	private final String mPath;
+
+	private final FilenameFilter mFilter;
+
+	private final boolean mShowHidden;
+
+	/**
+	 * 移动状态下不显示被选中的文件
+	 * */
+	private final FileViewInteractionHub mMovingFiles;
+
+	private final Listener mListener;
+
+	/**
+	 * @param movingFiles 不在移动状态时为null
+	 * */
+	public DirectoryLoader(String path, FilenameFilter filter,
+			boolean showHidden, FileViewInteractionHub movingFiles, Listener l) {
+		mPath = path;
+		mFilter = filter;
+		mShowHidden = showHidden;
+		mMovingFiles = movingFiles;
+		mListener = l;
+	}
+
+	public String getPath() {
+		return mPath;
+	}
+
+	/**
+	 * 不占用AsyncTask默认的串行线程，否则复制、删除进行时目录无法加载
+	 * */
+	public DirectoryLoader start() {
+		executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		return this;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected Boolean doInBackground(Void... params) {
+		// 快照只对不带过滤器的普通浏览有效
+		DirectorySnapshotCache cache = mFilter == null ? DirectorySnapshotCache
+				.getInstance() : null;
+		if (cache != null) {
+			ArrayList<FileInfo> cached = cache.get(mPath, mShowHidden);
+			if (cached != null) {
+				if (mMovingFiles != null) {
+					Iterator<FileInfo> iterator = cached.iterator();
+					while (iterator.hasNext()) {
+						if (mMovingFiles.isFileSelected(iterator.next().filePath))
+							iterator.remove();
+					}
+				}
+				if (!cached.isEmpty()) {
+					publishProgress(cached);
+				}
+				return true;
+			}
+		}
+
+		File dir = new File(mPath);
+		// 在列目录之前取修改时间，列目录期间的变化会使快照失效
+		long modified = dir.lastModified();
+		File[] listFiles = dir.listFiles(mFilter);
+		if (listFiles == null)
+			return false;
+
+		// 要缓存的快照包含移动状态下被隐藏的文件
+		ArrayList<FileInfo> all = cache != null ? new ArrayList<FileInfo>(
+				listFiles.length) : null;
+		int batchSize = FIRST_BATCH_SIZE;
+		ArrayList<FileInfo> batch = new ArrayList<FileInfo>(batchSize);
+		long lastPublish = SystemClock.uptimeMillis();
+		for (File child : listFiles) {
+			if (isCancelled())
+				return false;
+
+			String absolutePath = child.getAbsolutePath();
+			// 判断File是否Normal并且可以被显示（非隐藏）
+			if (!Util.isNormalFile(absolutePath)
+					|| !Util.shouldShowFile(absolutePath))
+				continue;
+
+			// do not show selected file if in move state
+			boolean moving = mMovingFiles != null
+					&& mMovingFiles.isFileSelected(child.getPath());
+			if (moving && all == null)
+				continue;
+
+			FileInfo lFileInfo = Util.GetFileInfo(child, mFilter, mShowHidden);
+			if (lFileInfo == null)
+				continue;
+
+			if (all != null) {
+				all.add(lFileInfo);
+				if (moving)
+					continue;
+			}
+			batch.add(lFileInfo);
+			long now = SystemClock.uptimeMillis();
+			if (batch.size() >= batchSize
+					|| now - lastPublish >= BATCH_INTERVAL_MS) {
+				publishProgress(batch);
+				batch = new ArrayList<FileInfo>();
+				batchSize = MAX_BATCH_SIZE;
+				lastPublish = now;
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			publishProgress(batch);
+		}
+		if (all != null) {
+			cache.put(mPath, modified, mShowHidden, all);
+		}
+		return true;
+	}
+
+	@Override
+	protected void onProgressUpdate(ArrayList<FileInfo>... values) {
+		if (isCancelled())
+			return;
+
+		for (ArrayList<FileInfo> batch : values) {
+			mListener.onBatchLoaded(this, batch);
+		}
+	}
+
+	@Override
+	protected void onPostExecute(Boolean result) {
+		mListener.onLoadFinished(this, result);
+	}
+}
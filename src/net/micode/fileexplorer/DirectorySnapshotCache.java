@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * 职责：缓存目录的快照（目录下所有可显示文件的FileInfo），返回上级目录或再次进入时不必重新stat
+ * 内存中是按字节数计量的LRU；可选的磁盘存储把快照写成紧凑的二进制文件，进程重启后仍可使用。
+ * 快照以目录的修改时间校验，应用自己的文件操作通过invalidate主动作废。
+ * 注意：目录的修改时间只反映增删改名，子文件内容变化（大小、修改时间）不会使快照失效
+ * */
+public class DirectorySnapshotCache {
+	private static final String LOG_TAG = "DirectorySnapshotCache";
+
+	private static final int MAX_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * 磁盘存储的上限，超过时删除最久没有用过的快照文件，删到上限的3/4
+	 * */
+	private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+
+	private static final String DISK_SUFFIX = ".snap";
+
+	/**
+	 * 修改时间距现在太近的目录不缓存：FAT的时间精度是2秒，
+	 * 同一时间单位内的后续修改不会改变修改时间
+	 * */
+	private static final long RACY_WINDOW_MS = 2000;
+
+	private static final int DISK_MAGIC = 0x46455344; // "FESD"
+
+	private static final int DISK_VERSION = 1;
+
+	private static final int FLAG_DIR = 1;
+	private static final int FLAG_CAN_READ = 2;
+	private static final int FLAG_CAN_WRITE = 4;
+	private static final int FLAG_HIDDEN = 8;
+
+	private static DirectorySnapshotCache instance;
+
+	private static class Snapshot {
+		final String path;
+
+		final long modified;
+
+		final boolean showHidden;
+
+		final ArrayList<FileInfo> entries;
+
+		final int bytes;
+
+		Snapshot(String path, long modified, boolean showHidden,
+				ArrayList<FileInfo> entries) {
+			this.path = path;
+			this.modified = modified;
+			this.showHidden = showHidden;
+			this.entries = entries;
+			int size = 64 + path.length() * 2;
+			for (FileInfo f : entries) {
+				// 对象头、字段和两个字符串的粗略估计
+				size += 96 + (f.fileName.length() + f.filePath.length()) * 2;
+			}
+			this.bytes = size;
+		}
+	}
+
+	/**
+	 * 按访问顺序的LRU，由this的锁保护
+	 * */
+	private final LinkedHashMap<String, Snapshot> mSnapshots = new LinkedHashMap<String, Snapshot>(
+			16, 0.75f, true);
+
+	private int mBytes;
+
+	private volatile File mDiskDir;
+
+	/**
+	 * 磁盘存储中快照文件的总字节数，-1表示还没有统计；由mDiskLock保护
+	 * */
+	private long mDiskBytes = -1;
+
+	private final Object mDiskLock = new Object();
+
+	private DirectorySnapshotCache() {
+	}
+
+	public static synchronized DirectorySnapshotCache getInstance() {
+		if (instance == null) {
+			instance = new DirectorySnapshotCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * 打开磁盘存储，dir为null时关闭
+	 * */
+	public void setDiskStore(File dir) {
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			Log.e(LOG_TAG, "Fail to create disk store " + dir);
+			dir = null;
+		}
+		synchronized (mDiskLock) {
+			mDiskDir = dir;
+			mDiskBytes = -1;
+		}
+	}
+
+	/**
+	 * 返回快照的副本（FileInfo可以随意修改），目录已变化或没有缓存时返回null
+	 * 在后台线程中调用，会stat目录，可能读磁盘
+	 * */
+	public ArrayList<FileInfo> get(String path, boolean showHidden) {
+		long modified = new File(path).lastModified();
+		if (modified == 0)
+			return null;
+
+		Snapshot snapshot;
+		synchronized (this) {
+			snapshot = mSnapshots.get(path);
+		}
+		if (snapshot == null) {
+			snapshot = readFromDisk(path);
+			if (snapshot != null) {
+				putSnapshot(snapshot);
+			}
+		}
+		if (snapshot == null || snapshot.modified != modified
+				|| snapshot.showHidden != showHidden)
+			return null;
+
+		ArrayList<FileInfo> copy = new ArrayList<FileInfo>(
+				snapshot.entries.size());
+		for (FileInfo f : snapshot.entries) {
+			copy.add(copyOf(f));
+		}
+		return copy;
+	}
+
+	/**
+	 * @param modified 开始列目录之前取得的目录修改时间，列目录期间的变化因此会使快照失效
+	 * */
+	public void put(String path, long modified, boolean showHidden,
+			List<FileInfo> entries) {
+		if (modified == 0
+				|| System.currentTimeMillis() - modified < RACY_WINDOW_MS)
+			return;
+
+		ArrayList<FileInfo> copy = new ArrayList<FileInfo>(entries.size());
+		for (FileInfo f : entries) {
+			copy.add(copyOf(f));
+		}
+		Snapshot snapshot = new Snapshot(path, modified, showHidden, copy);
+		if (putSnapshot(snapshot)) {
+			writeToDisk(snapshot);
+		}
+	}
+
+	/**
+	 * 目录path的内容被应用自己改变了
+	 * */
+	public void invalidate(String path) {
+		synchronized (this) {
+			Snapshot snapshot = mSnapshots.remove(path);
+			if (snapshot != null) {
+				mBytes -= snapshot.bytes;
+			}
+		}
+		deleteFromDisk(path);
+	}
+
+	/**
+	 * 作废path及其下所有目录的快照，用于删除、移动目录
+	 * */
+	public void invalidateTree(String path) {
+		ArrayList<String> removed = new ArrayList<String>();
+		synchronized (this) {
+			Iterator<Snapshot> iterator = mSnapshots.values().iterator();
+			while (iterator.hasNext()) {
+				Snapshot snapshot = iterator.next();
+				if (snapshot.path.equals(path)
+						|| snapshot.path.startsWith(path + File.separator)) {
+					mBytes -= snapshot.bytes;
+					iterator.remove();
+					removed.add(snapshot.path);
+				}
+			}
+		}
+		for (String p : removed) {
+			deleteFromDisk(p);
+		}
+		// 磁盘中可能还有内存里已被淘汰的子目录快照，它们会因修改时间不符而被忽略
+		deleteFromDisk(path);
+	}
+
+	public synchronized void clear() {
+		mSnapshots.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * @return 快照是否放进了内存（太大的快照不缓存）
+	 * */
+	private synchronized boolean putSnapshot(Snapshot snapshot) {
+		if (snapshot.bytes > MAX_BYTES / 4)
+			return false;
+
+		Snapshot old = mSnapshots.put(snapshot.path, snapshot);
+		if (old != null) {
+			mBytes -= old.bytes;
+		}
+		mBytes += snapshot.bytes;
+
+		Iterator<Snapshot> iterator = mSnapshots.values().iterator();
+		while (mBytes > MAX_BYTES && iterator.hasNext()) {
+			mBytes -= iterator.next().bytes;
+			iterator.remove();
+		}
+		return true;
+	}
+
+	private static FileInfo copyOf(FileInfo f) {
+		FileInfo info = new FileInfo();
+		info.fileName = f.fileName;
+		info.filePath = f.filePath;
+		info.fileSize = f.fileSize;
+		info.IsDir = f.IsDir;
+		info.Count = f.IsDir ? FileInfo.COUNT_UNKNOWN : 0;
+		info.ModifiedDate = f.ModifiedDate;
+		info.canRead = f.canRead;
+		info.canWrite = f.canWrite;
+		info.isHidden = f.isHidden;
+		return info;
+	}
+
+	private File getDiskFile(String path) {
+		File dir = mDiskDir;
+		if (dir == null)
+			return null;
+		// 哈希冲突时读取会因为路径不符而失败
+		return new File(dir, Integer.toHexString(path.hashCode()) + DISK_SUFFIX);
+	}
+
+	private void deleteFromDisk(String path) {
+		File file = getDiskFile(path);
+		if (file == null)
+			return;
+
+		synchronized (mDiskLock) {
+			long length = file.length();
+			if (file.delete() && mDiskBytes >= 0) {
+				mDiskBytes -= length;
+			}
+		}
+	}
+
+	/**
+	 * 记录file替换掉一个oldLength字节的旧文件，超过上限时按最后使用时间删除最旧的快照
+	 * */
+	private void accountDiskFile(File file, long oldLength) {
+		synchronized (mDiskLock) {
+			File dir = file.getParentFile();
+			if (mDiskBytes < 0) {
+				// 第一次写入时统计已有的文件，已经包含了file
+				mDiskBytes = 0;
+				for (File f : listDiskFiles(dir)) {
+					mDiskBytes += f.length();
+				}
+			} else {
+				mDiskBytes += file.length() - oldLength;
+			}
+			if (mDiskBytes <= MAX_DISK_BYTES)
+				return;
+
+			File[] files = listDiskFiles(dir);
+			final long[] modified = new long[files.length];
+			Integer[] order = new Integer[files.length];
+			for (int i = 0; i < files.length; i++) {
+				// 排序期间不再访问磁盘
+				modified[i] = files[i].lastModified();
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return modified[a] < modified[b] ? -1
+							: (modified[a] == modified[b] ? 0 : 1);
+				}
+			});
+			long target = MAX_DISK_BYTES * 3 / 4;
+			for (int i = 0; i < order.length && mDiskBytes > target; i++) {
+				File f = files[order[i]];
+				if (f.equals(file))
+					continue;
+				long length = f.length();
+				if (f.delete()) {
+					mDiskBytes -= length;
+				}
+			}
+			Log.v(LOG_TAG, "trim disk store to " + mDiskBytes + " bytes");
+		}
+	}
+
+	private static File[] listDiskFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+
+		ArrayList<File> snaps = new ArrayList<File>(files.length);
+		for (File f : files) {
+			if (f.getName().endsWith(DISK_SUFFIX)) {
+				snaps.add(f);
+			}
+		}
+		return snaps.toArray(new File[snaps.size()]);
+	}
+
+	/**
+	 * 格式：magic, version, 目录路径, 修改时间, showHidden, 条目数,
+	 * 每个条目为 文件名, 标志位, 大小, 修改时间；条目路径由目录路径和文件名拼出
+	 * */
+	private void writeToDisk(Snapshot snapshot) {
+		File file = getDiskFile(snapshot.path);
+		if (file == null)
+			return;
+
+		// 先写临时文件再改名，写到一半时崩溃不会留下损坏的快照
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(DISK_MAGIC);
+			out.writeInt(DISK_VERSION);
+			out.writeUTF(snapshot.path);
+			out.writeLong(snapshot.modified);
+			out.writeBoolean(snapshot.showHidden);
+			out.writeInt(snapshot.entries.size());
+			for (FileInfo f : snapshot.entries) {
+				int flags = (f.IsDir ? FLAG_DIR : 0)
+						| (f.canRead ? FLAG_CAN_READ : 0)
+						| (f.canWrite ? FLAG_CAN_WRITE : 0)
+						| (f.isHidden ? FLAG_HIDDEN : 0);
+				out.writeUTF(f.fileName);
+				out.writeByte(flags);
+				out.writeLong(f.fileSize);
+				out.writeLong(f.ModifiedDate);
+			}
+			out.close();
+			out = null;
+			long oldLength = file.length();
+			if (tmp.renameTo(file)) {
+				accountDiskFile(file, oldLength);
+			} else {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Fail to write snapshot of " + snapshot.path + ","
+					+ e.toString());
+			tmp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private Snapshot readFromDisk(String path) {
+		File file = getDiskFile(path);
+		if (file == null || !file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != DISK_MAGIC || in.readInt() != DISK_VERSION
+					|| !in.readUTF().equals(path))
+				return null;
+
+			long modified = in.readLong();
+			boolean showHidden = in.readBoolean();
+			int size = in.readInt();
+			ArrayList<FileInfo> entries = new ArrayList<FileInfo>(size);
+			for (int i = 0; i < size; i++) {
+				FileInfo f = new FileInfo();
+				f.fileName = in.readUTF();
+				f.filePath = Util.makePath(path, f.fileName);
+				int flags = in.readByte();
+				f.IsDir = (flags & FLAG_DIR) != 0;
+				f.canRead = (flags & FLAG_CAN_READ) != 0;
+				f.canWrite = (flags & FLAG_CAN_WRITE) != 0;
+				f.isHidden = (flags & FLAG_HIDDEN) != 0;
+				f.fileSize = in.readLong();
+				f.ModifiedDate = in.readLong();
+				f.Count = f.IsDir ? FileInfo.COUNT_UNKNOWN : 0;
+				entries.add(f);
+			}
+			// 磁盘存储超出上限时按最后使用时间淘汰
+			file.setLastModified(System.currentTimeMillis());
+			return new Snapshot(path, modified, showHidden, entries);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Fail to read snapshot of " + path + ","
+					+ e.toString());
+			file.delete();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return null;
+	}
+}
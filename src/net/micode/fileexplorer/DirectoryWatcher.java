@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 职责：监视当前目录，把一段时间内的变化合并后交给监听者
+ * 事件只记录发生变化的文件名，同一个文件的多次创建、修改、删除合并成一个；
+ * 最终状态由监听者在应用时stat得到。具体的监视由Backend完成，设备上是FileObserverBackend，
+ * 本类本身不依赖Android，回调在构造时给出的Executor上执行
+ * */
+public class DirectoryWatcher {
+
+	/**
+	 * 合并事件的时间窗口
+	 * */
+	private static final long DEBOUNCE_MS = 300;
+
+	/**
+	 * 一个窗口内变化的文件超过这个数时，不再逐个打补丁，直接整个刷新
+	 * */
+	private static final int MAX_PATCH_SIZE = 256;
+
+	/**
+	 * 监视的实现
+	 * */
+	public interface Backend {
+		/**
+		 * 开始监视dir，变化通过watcher.onEvent报告
+		 * */
+		void start(String dir, DirectoryWatcher watcher);
+
+		void stop();
+	}
+
+	public interface Listener {
+		/**
+		 * @param names 发生变化的文件名；为null时表示变化太多或目录本身被删除、移动，需要整个刷新
+		 * */
+		void onDirectoryChanged(String dir, ArrayList<String> names);
+	}
+
+	private static ScheduledExecutorService sScheduler;
+
+	private final Backend mBackend;
+
+	private final Executor mCallbackExecutor;
+
+	private final Listener mListener;
+
+	private String mDir;
+
+	/**
+	 * 每次watch加一，过期的事件和回调按它丢弃；下面的字段都由this的锁保护
+	 * */
+	private int mGeneration;
+
+	private LinkedHashSet<String> mPendingNames = new LinkedHashSet<String>();
+
+	private boolean mOverflow;
+
+	private boolean mFlushScheduled;
+
+	public DirectoryWatcher(Backend backend, Executor callbackExecutor,
+			Listener l) {
+		mBackend = backend;
+		mCallbackExecutor = callbackExecutor;
+		mListener = l;
+	}
+
+	/**
+	 * 改为监视dir，之前目录中还没有交出的变化被丢弃
+	 * */
+	public void watch(String dir) {
+		synchronized (this) {
+			if (dir.equals(mDir))
+				return;
+			mBackend.stop();
+			mDir = dir;
+			mGeneration++;
+			mPendingNames.clear();
+			mOverflow = false;
+			mFlushScheduled = false;
+		}
+		mBackend.start(dir, this);
+	}
+
+	public void stop() {
+		synchronized (this) {
+			mBackend.stop();
+			mDir = null;
+			mGeneration++;
+			mPendingNames.clear();
+			mOverflow = false;
+			mFlushScheduled = false;
+		}
+	}
+
+	/**
+	 * 由Backend在任意线程中调用
+	 * @param name 变化的文件名，null表示目录本身发生了变化
+	 * */
+	public void onEvent(String name) {
+		final int generation;
+		synchronized (this) {
+			if (mDir == null)
+				return;
+
+			if (name == null || mPendingNames.size() >= MAX_PATCH_SIZE) {
+				mOverflow = true;
+				mPendingNames.clear();
+			} else if (!mOverflow) {
+				mPendingNames.add(name);
+			}
+
+			if (mFlushScheduled)
+				return;
+			mFlushScheduled = true;
+			generation = mGeneration;
+		}
+
+		getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush(generation);
+			}
+		}, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void flush(final int generation) {
+		final String dir;
+		final ArrayList<String> names;
+		synchronized (this) {
+			// 过期的flush不能清掉新目录的标记
+			if (generation != mGeneration)
+				return;
+			mFlushScheduled = false;
+
+			dir = mDir;
+			names = mOverflow ? null : new ArrayList<String>(mPendingNames);
+			mPendingNames.clear();
+			mOverflow = false;
+		}
+
+		mCallbackExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (DirectoryWatcher.this) {
+					if (generation != mGeneration)
+						return;
+				}
+				mListener.onDirectoryChanged(dir, names);
+			}
+		});
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (sScheduler == null) {
+			sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DirectoryWatcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sScheduler;
+	}
+}
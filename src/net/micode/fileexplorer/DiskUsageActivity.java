@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import android.app.ListActivity;
+import android.content.ActivityNotFoundException;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.Window;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * 职责：磁盘占用分析
+ * 用TreeSizeService计算存储卡的目录树，然后从根目录开始逐层显示子目录和文件，按大小从大到小排列；
+ * 目录的大小来自计算结果，进入目录时不再重新计算，只列出其中的文件
+ * */
+public class DiskUsageActivity extends ListActivity {
+	private static final String LOG_TAG = "DiskUsageActivity";
+
+	private TreeSizeService.Request mRequest;
+
+	/**
+	 * 当前显示的目录，计算完成之前为null
+	 * */
+	private TreeSizeService.Node mCurrent;
+
+	private ListTask mListTask;
+
+	/**
+	 * 列表中的一行：子目录或文件
+	 * */
+	private static class UsageItem {
+		String name;
+
+		long size;
+
+		/**
+		 * 文件为null
+		 * */
+		TreeSizeService.Node node;
+	}
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+		setProgressBarIndeterminateVisibility(true);
+		setTitle(R.string.disk_usage_title);
+
+		TreeSizeService service = TreeSizeService.getInstance();
+		service.setDiskStore(new File(getCacheDir(), "tree_sizes"));
+		mRequest = service.compute(Util.getSdDirectory(),
+				new TreeSizeService.Listener() {
+					@Override
+					public void onProgress(long size, int fileCount) {
+						setTitle(getString(R.string.disk_usage_scanning,
+								Util.convertStorage(size)));
+					}
+
+					@Override
+					public void onFinish(TreeSizeService.Node root) {
+						mRequest = null;
+						setProgressBarIndeterminateVisibility(false);
+						show(root);
+					}
+				});
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (mRequest != null) {
+			mRequest.cancel();
+		}
+		if (mListTask != null) {
+			mListTask.cancel(false);
+		}
+	}
+
+	@Override
+	public void onBackPressed() {
+		// 返回上一层目录
+		if (mCurrent != null && mCurrent.parent != null) {
+			show(mCurrent.parent);
+			return;
+		}
+		super.onBackPressed();
+	}
+
+	@Override
+	protected void onListItemClick(ListView l, View v, int position, long id) {
+		UsageItem item = (UsageItem) l.getItemAtPosition(position);
+		if (item.node != null) {
+			show(item.node);
+		} else {
+			try {
+				IntentBuilder.viewFile(this,
+						Util.makePath(mCurrent.path, item.name));
+			} catch (ActivityNotFoundException e) {
+				Log.e(LOG_TAG, "fail to view file: " + e.toString());
+			}
+		}
+	}
+
+	private void show(TreeSizeService.Node node) {
+		mCurrent = node;
+		setTitle(node.path);
+		if (mListTask != null) {
+			mListTask.cancel(false);
+		}
+		mListTask = new ListTask(node);
+		mListTask.execute();
+	}
+
+	/**
+	 * 子目录的大小已经知道，只需要列出目录中的文件，然后按大小排序
+	 * */
+	private class ListTask extends AsyncTask<Void, Void, ArrayList<UsageItem>> {
+		private final TreeSizeService.Node mNode;
+
+		ListTask(TreeSizeService.Node node) {
+			mNode = node;
+		}
+
+		@Override
+		protected ArrayList<UsageItem> doInBackground(Void... params) {
+			ArrayList<UsageItem> items = new ArrayList<UsageItem>();
+			for (TreeSizeService.Node child : mNode.children) {
+				UsageItem item = new UsageItem();
+				item.name = Util.getNameFromFilepath(child.path);
+				item.size = child.totalSize;
+				item.node = child;
+				items.add(item);
+			}
+
+			File[] files = new File(mNode.path).listFiles();
+			if (files != null) {
+				for (File f : files) {
+					if (isCancelled())
+						return items;
+					if (f.isDirectory())
+						continue;
+					UsageItem item = new UsageItem();
+					item.name = f.getName();
+					item.size = f.length();
+					items.add(item);
+				}
+			}
+
+			Collections.sort(items, new Comparator<UsageItem>() {
+				@Override
+				public int compare(UsageItem object1, UsageItem object2) {
+					return object1.size < object2.size ? 1
+							: object1.size > object2.size ? -1 : 0;
+				}
+			});
+			return items;
+		}
+
+		@Override
+		protected void onPostExecute(ArrayList<UsageItem> result) {
+			if (mListTask != this)
+				return;
+
+			mListTask = null;
+			setListAdapter(new UsageAdapter(DiskUsageActivity.this, result,
+					mNode.totalSize));
+			getListView().setSelection(0);
+		}
+	}
+
+	/**
+	 * 第一行显示名字（目录以/结尾），第二行显示大小和占当前目录的比例
+	 * */
+	private static class UsageAdapter extends ArrayAdapter<UsageItem> {
+		private final long mTotal;
+
+		public UsageAdapter(Context context, ArrayList<UsageItem> items,
+				long total) {
+			super(context, android.R.layout.simple_list_item_2,
+					android.R.id.text1, items);
+			mTotal = total;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = super.getView(position, convertView, parent);
+			UsageItem item = getItem(position);
+			((TextView) view.findViewById(android.R.id.text1))
+					.setText(item.node != null ? item.name + File.separator
+							: item.name);
+			int percent = mTotal > 0 ? (int) (item.size * 100 / mTotal) : 0;
+			((TextView) view.findViewById(android.R.id.text2)).setText(Util
+					.convertStorage(item.size) + "  " + percent + "%");
+			return view;
+		}
+	}
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -45,7 +46,9 @@ import android.util.Log;
 import org.swiftp.Defaults;
 import org.swiftp.Globals;
 import org.swiftp.MyLog;
+import org.swiftp.NioTcpListener;
 import org.swiftp.ProxyConnector;
+import org.swiftp.SessionScheduler;
 import org.swiftp.SessionThread;
 import org.swiftp.TcpListener;
 import org.swiftp.UiUpdater;
@@ -66,8 +69,6 @@ public class FTPServerService extends Service implements Runnable {
 
     public static final int BACKLOG = 21;
 
-    public static final int MAX_SESSIONS = 5;
-
     public static final String WAKE_LOCK_TAG = "SwiFTP";
 
     // protected ServerSocketChannel wifiSocket;
@@ -99,6 +100,8 @@ public class FTPServerService extends Service implements Runnable {
 
     private TcpListener wifiListener = null;
 
+    private SessionScheduler sessionScheduler = null;
+
     private ProxyConnector proxyConnector = null;
 
     private List<SessionThread> sessionThreads = new ArrayList<SessionThread>();
@@ -241,6 +244,8 @@ public class FTPServerService extends Service implements Runnable {
             port = Defaults.portNumber;
         }
         myLog.l(Log.DEBUG, "Using port " + port);
+        // 每次启动时读取，设置中的修改在下次启动时生效
+        Defaults.setNioControlEngine(FileExplorerPreferenceActivity.isFtpNioEngine(this));
 
         acceptNet = false;
         acceptWifi = true;
@@ -252,9 +257,10 @@ public class FTPServerService extends Service implements Runnable {
     // This opens a listening socket on all interfaces.
     void setupListener() throws IOException {
         // 在port上开启监听Socket
-    	listenSocket = new ServerSocket();
+        // Created through a channel so NioTcpListener can select on it
+    	listenSocket = ServerSocketChannel.open().socket();
         listenSocket.setReuseAddress(true);
-        listenSocket.bind(new InetSocketAddress(port));
+        listenSocket.bind(new InetSocketAddress(port), BACKLOG);
     }
 
     @SuppressWarnings("deprecation")
@@ -373,7 +379,14 @@ public class FTPServerService extends Service implements Runnable {
                     // Either our wifi listener hasn't been created yet, or has
                     // crashed,
                     // so spawn it
-                    wifiListener = new TcpListener(listenSocket, this);
+                    if (Defaults.isNioControlEngine()) {
+                        wifiListener = new NioTcpListener(listenSocket, this);
+                    } else {
+                        if (sessionScheduler == null) {
+                            sessionScheduler = new SessionScheduler(Defaults.getMaxSessions());
+                        }
+                        wifiListener = new TcpListener(listenSocket, this, sessionScheduler);
+                    }
                     wifiListener.start();
                 }
             }
@@ -456,6 +469,10 @@ public class FTPServerService extends Service implements Runnable {
     }
 
     private void terminateAllSessions() {
+        if (sessionScheduler != null) {
+            sessionScheduler.shutdown();
+            sessionScheduler = null;
+        }
         myLog.i("Terminating " + sessionThreads.size() + " session thread(s)");
         synchronized (this) {
             for (SessionThread sessionThread : sessionThreads) {
@@ -117,6 +117,14 @@ public class FileCategoryActivity extends Fragment implements IFileInteractionLi
         // 正常的fileList
         ListView fileListView = (ListView) mRootView.findViewById(R.id.file_path_list);
         fileListView.setAdapter(mAdapter);
+        fileListView.setOnScrollListener(new IconScrollController(mFileIconHelper,
+                new IconScrollController.FileSource() {
+                    @Override
+                    public FileInfo getFileInfo(int position) {
+                        return position < mAdapter.getCount() ? mAdapter
+                                .getFileItemByPos(position) : null;
+                    }
+                }));
         // 为category显示页面图标设定点击事件
         setupClick();
         // 设置category bar
@@ -143,6 +151,13 @@ public class FileCategoryActivity extends Fragment implements IFileInteractionLi
         mFileCagetoryHelper = new FileCategoryHelper(mActivity);
         
         mCategoryBar = (CategoryBar) mRootView.findViewById(R.id.category_bar);
+        // 点击存储条进入磁盘占用分析
+        mCategoryBar.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startActivity(new Intent(mActivity, DiskUsageActivity.class));
+            }
+        });
         
         // 建立Category对象和Index的对应关系
         int[] imgs = new int[] {
@@ -452,8 +467,17 @@ public class FileCategoryActivity extends Fragment implements IFileInteractionLi
     }
 
     @Override
-    public void addSingleFile(FileInfo file) {
+    public int addSingleFile(FileInfo file) {
         refreshList();
+        return -1;
+    }
+
+    @Override
+    public int renameSingleFile(FileInfo file, String newPath) {
+        file.fileName = Util.getNameFromFilepath(newPath);
+        file.filePath = newPath;
+        onDataChanged();
+        return -1;
     }
 
     @Override
@@ -574,6 +598,12 @@ public class FileCategoryActivity extends Fragment implements IFileInteractionLi
         mCategoryBar.setCategoryValue(categoryIndex.get(f), size);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        mFileIconHelper.flushDiskCache();
+    }
+
     public void onDestroy() {
         super.onDestroy();
         if (mActivity != null) {
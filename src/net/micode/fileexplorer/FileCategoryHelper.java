@@ -223,6 +223,8 @@ public class FileCategoryHelper {
         String sortOrder = null;
         switch (sort) {
             case name:
+            // 数据库无法按自然顺序排序，按名称
+            case natural:
                 sortOrder = FileColumns.TITLE + " asc";
                 break;
             case size:
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.micode.fileexplorer.FileOperationHelper.IOperationProgressListener;
+
+import android.util.Log;
+
+/**
+ * 职责：并行、可取消的递归复制
+ * 目录树在调用线程上遍历（顺便创建目标目录），文件交给一个小线程池复制；
+ * 大文件用FileChannel.transferTo，小文件复用池中的缓冲区
+ * */
+public class FileCopyEngine {
+	private static final String LOG_TAG = "FileCopyEngine";
+
+	/**
+	 * 不小于该大小的文件使用transferTo
+	 * */
+	private static final long TRANSFER_THRESHOLD = 512 * 1024;
+
+	/**
+	 * 每次transferTo的最大字节数，分段传输以便及时响应取消
+	 * */
+	private static final long TRANSFER_CHUNK = 4 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_WORKERS = 3;
+
+	/**
+	 * 任务队列满时由遍历线程自己复制，防止遍历远远跑在复制前面
+	 * */
+	private static final int QUEUE_SIZE = 64;
+
+	private static final long PROGRESS_INTERVAL_MS = 200;
+
+	private final FilenameFilter mFilter;
+
+	private final IOperationProgressListener mListener;
+
+	private final int mWorkers;
+
+	private final ArrayBlockingQueue<byte[]> mBuffers;
+
+	private volatile boolean mCancelled;
+
+	/**
+	 * 移动时为true：源文件复制后会被删除，隐藏文件也必须带走
+	 * */
+	private boolean mIncludeHidden;
+
+	private final AtomicInteger mFilesTotal = new AtomicInteger();
+
+	private final AtomicInteger mFilesDone = new AtomicInteger();
+
+	private final AtomicInteger mFailures = new AtomicInteger();
+
+	private final AtomicLong mBytesDone = new AtomicLong();
+
+	private final AtomicLong mLastReport = new AtomicLong();
+
+	public FileCopyEngine(FilenameFilter filter, IOperationProgressListener l) {
+		mFilter = filter;
+		mListener = l;
+		mWorkers = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime()
+				.availableProcessors()));
+		// 工作线程加上可能直接执行任务的遍历线程
+		mBuffers = new ArrayBlockingQueue<byte[]>(mWorkers + 1);
+	}
+
+	/**
+	 * 可以从任意线程调用；正在复制的文件会在下一个数据块处停止并删除
+	 * */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public void setIncludeHidden(boolean include) {
+		mIncludeHidden = include;
+	}
+
+	/**
+	 * 把files复制到dest目录下，阻塞直到全部完成或被取消
+	 * @return 复制失败的文件数
+	 * */
+	public int copy(List<FileInfo> files, String dest) {
+		ThreadPoolExecutor executor = newExecutor();
+		File destDir = new File(dest);
+		try {
+			for (FileInfo f : files) {
+				if (mCancelled)
+					break;
+				copyTopLevel(executor, new File(f.filePath), destDir);
+			}
+		} finally {
+			awaitExecutor(executor);
+		}
+		reportProgress(true);
+		Log.v(LOG_TAG, "copy >>> " + dest + ", files: " + mFilesDone.get()
+				+ "/" + mFilesTotal.get() + ", bytes: " + mBytesDone.get()
+				+ (mCancelled ? ", cancelled" : ""));
+		return mFailures.get();
+	}
+
+	/**
+	 * 把src（文件或目录）原样复制为target，target不能已存在；阻塞直到完成
+	 * 进度在多次调用之间累计
+	 * @return 全部复制并校验成功时返回true，失败时不清理target
+	 * */
+	public boolean copyTo(File src, File target) {
+		int failures = mFailures.get();
+		if (src.isDirectory()
+				&& Util.containsPath(src.getAbsolutePath(), target
+						.getAbsolutePath())) {
+			Log.e(LOG_TAG, "copy: cannot copy a directory into itself, " + src);
+			mFailures.incrementAndGet();
+			return false;
+		}
+		ThreadPoolExecutor executor = newExecutor();
+		try {
+			if (src.isDirectory()) {
+				if (target.mkdir()) {
+					copyChildren(executor, src, target);
+				} else {
+					Log.e(LOG_TAG, "copy: fail to create " + target);
+					mFailures.incrementAndGet();
+				}
+			} else {
+				submit(executor, src, target);
+			}
+		} finally {
+			awaitExecutor(executor);
+		}
+		reportProgress(true);
+		return !mCancelled && mFailures.get() == failures;
+	}
+
+	private ThreadPoolExecutor newExecutor() {
+		return new ThreadPoolExecutor(mWorkers, mWorkers, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+						QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	private void awaitExecutor(ThreadPoolExecutor executor) {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 顶层的文件和目录与目标重名时按"name i"重命名，与原先的复制逻辑一致
+	 * */
+	private void copyTopLevel(ThreadPoolExecutor executor, File src, File destDir) {
+		if (src.isDirectory()) {
+			if (Util.containsPath(src.getAbsolutePath(), destDir.getAbsolutePath())) {
+				Log.e(LOG_TAG, "copy: cannot copy a directory into itself, "
+						+ src);
+				mFailures.incrementAndGet();
+				return;
+			}
+			File target = createUniqueDir(destDir, src.getName());
+			if (target == null) {
+				mFailures.incrementAndGet();
+				return;
+			}
+			copyChildren(executor, src, target);
+		} else {
+			File target = createUniqueFile(destDir, src.getName());
+			if (target == null) {
+				mFailures.incrementAndGet();
+				return;
+			}
+			submit(executor, src, target);
+		}
+	}
+
+	/**
+	 * 目标目录是刚创建的，其中的文件不会重名，不需要逐个探测
+	 * 注意：和原先一样，除非setIncludeHidden，隐藏文件不复制
+	 * */
+	private void copyChildren(ThreadPoolExecutor executor, File dir, File target) {
+		File[] children = dir.listFiles(mFilter);
+		if (children == null)
+			return;
+
+		for (File child : children) {
+			if (mCancelled)
+				return;
+			if ((!mIncludeHidden && child.isHidden())
+					|| !Util.isNormalFile(child.getAbsolutePath()))
+				continue;
+
+			File childTarget = new File(target, child.getName());
+			if (child.isDirectory()) {
+				if (!childTarget.mkdir() && !childTarget.isDirectory()) {
+					Log.e(LOG_TAG, "copy: fail to create " + childTarget);
+					mFailures.incrementAndGet();
+					continue;
+				}
+				copyChildren(executor, child, childTarget);
+			} else {
+				submit(executor, child, childTarget);
+			}
+		}
+	}
+
+	private void submit(ThreadPoolExecutor executor, final File src, final File target) {
+		mFilesTotal.incrementAndGet();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				copyOneFile(src, target);
+			}
+		});
+	}
+
+	private void copyOneFile(File src, File target) {
+		boolean ok = false;
+		if (!mCancelled) {
+			try {
+				if (src.length() >= TRANSFER_THRESHOLD) {
+					ok = transfer(src, target);
+				} else {
+					ok = stream(src, target);
+				}
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "copy: " + src + ", " + e.toString());
+			}
+			// 校验：长度不一致说明源文件在复制过程中被修改或写入不完整
+			if (ok && target.length() != src.length()) {
+				Log.e(LOG_TAG, "copy: size mismatch, " + src);
+				ok = false;
+			}
+		}
+
+		if (ok) {
+			mFilesDone.incrementAndGet();
+		} else {
+			// 不留下不完整的文件
+			target.delete();
+			if (!mCancelled)
+				mFailures.incrementAndGet();
+		}
+		reportProgress(false);
+	}
+
+	private boolean transfer(File src, File target) throws IOException {
+		FileInputStream fi = null;
+		FileOutputStream fo = null;
+		try {
+			fi = new FileInputStream(src);
+			fo = new FileOutputStream(target);
+			FileChannel in = fi.getChannel();
+			FileChannel out = fo.getChannel();
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				if (mCancelled)
+					return false;
+				long n = in.transferTo(position,
+						Math.min(TRANSFER_CHUNK, size - position), out);
+				if (n <= 0)
+					return false;
+				position += n;
+				addBytes(n);
+			}
+			return true;
+		} finally {
+			closeQuietly(fi);
+			closeQuietly(fo);
+		}
+	}
+
+	private boolean stream(File src, File target) throws IOException {
+		FileInputStream fi = null;
+		FileOutputStream fo = null;
+		byte[] buffer = acquireBuffer();
+		try {
+			fi = new FileInputStream(src);
+			fo = new FileOutputStream(target);
+			int read;
+			while ((read = fi.read(buffer, 0, buffer.length)) != -1) {
+				if (mCancelled)
+					return false;
+				fo.write(buffer, 0, read);
+				addBytes(read);
+			}
+			return true;
+		} finally {
+			mBuffers.offer(buffer);
+			closeQuietly(fi);
+			closeQuietly(fo);
+		}
+	}
+
+	private byte[] acquireBuffer() {
+		byte[] buffer = mBuffers.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	private void addBytes(long n) {
+		mBytesDone.addAndGet(n);
+		reportProgress(false);
+	}
+
+	/**
+	 * 节流：两次回调至少间隔PROGRESS_INTERVAL_MS，同一时刻只有一个线程回调
+	 * */
+	private void reportProgress(boolean force) {
+		if (mListener == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		long last = mLastReport.get();
+		if (!force && now - last < PROGRESS_INTERVAL_MS)
+			return;
+		if (!mLastReport.compareAndSet(last, now) && !force)
+			return;
+
+		mListener.onProgress(mFilesDone.get(), mFilesTotal.get(),
+				mBytesDone.get());
+	}
+
+	/**
+	 * createNewFile是原子的，失败就换下一个名字，省掉逐个exists()探测
+	 * */
+	private static File createUniqueFile(File dir, String name) {
+		File f = new File(dir, name);
+		int i = 1;
+		try {
+			while (!f.createNewFile()) {
+				if (!f.exists()) {
+					Log.e(LOG_TAG, "copy: fail to create " + f);
+					return null;
+				}
+				f = new File(dir, Util.getNameFromFilename(name) + " " + i++
+						+ "." + Util.getExtFromFilename(name));
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "copy: fail to create " + f + ", " + e.toString());
+			return null;
+		}
+		return f;
+	}
+
+	private static File createUniqueDir(File dir, String name) {
+		File f = new File(dir, name);
+		int i = 1;
+		while (!f.mkdir()) {
+			if (!f.exists()) {
+				Log.e(LOG_TAG, "copy: fail to create " + f);
+				return null;
+			}
+			f = new File(dir, name + " " + i++);
+		}
+		return f;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "close: " + e.toString());
+		}
+	}
+}
@@ -38,6 +38,7 @@ public class FileExplorerPreferenceActivity extends PreferenceActivity implement
     private static final String PRIMARY_FOLDER = "pref_key_primary_folder";
     private static final String READ_ROOT = "pref_key_read_root";
     private static final String SHOW_REAL_PATH = "pref_key_show_real_path";
+    private static final String FTP_NIO_ENGINE = "pref_key_ftp_nio_engine";
     private static final String SYSTEM_SEPARATOR = File.separator;
 
     private EditTextPreference mEditTextPreference;
@@ -117,4 +118,12 @@ public class FileExplorerPreferenceActivity extends PreferenceActivity implement
     	return settings.getBoolean(SHOW_REAL_PATH, false);
     }
 
+    /**
+     * 作用：FTP服务是否用一个Selector线程处理所有控制连接（NioTcpListener）
+     * */
+    public static boolean isFtpNioEngine(Context context) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        return settings.getBoolean(FTP_NIO_ENGINE, false);
+    }
+
 }
@@ -145,6 +145,54 @@ public class FileIconHelper implements IconLoadFinishListener {
             fileImage.setImageResource(R.drawable.file_icon_default);
     }
 
+    /**
+     * 列表快速滑动时暂停加载
+     * */
+    public void pause() {
+        mIconLoader.pause();
+    }
+
+    /**
+     * 列表停下来后继续加载可见的行
+     * */
+    public void resume() {
+        mIconLoader.resume();
+    }
+
+    /**
+     * 分两步继续加载：先unpause，提交预加载后再resubmitPending，可见的行先加载
+     * */
+    public void unpause() {
+        mIconLoader.unpause();
+    }
+
+    public void resubmitPending() {
+        mIconLoader.resubmitPending();
+    }
+
+    /**
+     * 界面进入后台时调用，保存新生成的缩略图
+     * */
+    public void flushDiskCache() {
+        mIconLoader.flushDiskCache();
+    }
+
+    /**
+     * 预加载还没有显示的文件的图标
+     * */
+    public void preload(FileInfo fileInfo) {
+        FileCategory fc = FileCategoryHelper.getCategoryFromPath(fileInfo.filePath);
+        switch (fc) {
+            case Apk:
+            case Picture:
+            case Video:
+                mIconLoader.preload(fileInfo.filePath, fileInfo.dbId, fc);
+                break;
+            default:
+                break;
+        }
+    }
+
     @Override
     public void onIconLoadFinished(ImageView image) {
         ImageView frame = imageFrames.get(image);
@@ -19,70 +19,90 @@
 
 package net.micode.fileexplorer;
 
-import java.lang.ref.SoftReference;
-import java.util.Iterator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.micode.fileexplorer.FileCategoryHelper.FileCategory;
+import android.app.ActivityManager;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
+import android.media.ThumbnailUtils;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
-import android.os.Handler.Callback;
+import android.os.Process;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
-import android.provider.MediaStore.Files.FileColumns;
 import android.util.Log;
+import android.util.LruCache;
 import android.widget.ImageView;
 
 /**
- * Asynchronously loads file icons and thumbnail, mostly single-threaded.
+ * Asynchronously loads file icons and thumbnails on a small pool of workers.
+ * 图片缩略图直接从MediaStore读取，代价小；APK图标要解析整个安装包，视频缩略图可能要解码，代价大。
+ * 两类请求在不同的线程池中加载，慢的不会挡住快的；线程池按后进先出执行，最近绑定的行先加载，
+ * ImageView被复用或请求被取消后，还在排队的任务执行时直接跳过
  */
-public class FileIconLoader implements Callback {
+public class FileIconLoader {
 
-	private static final String LOADER_THREAD_NAME = "FileIconLoader";
+	private static final String LOG_TAG = "FileIconLoader";
+
+	private static final int FAST_WORKERS = 2;
+
+	private static final int SLOW_WORKERS = 1;
 
 	/**
-	 * Type of message sent by the UI thread to itself to indicate that some
-	 * photos need to be loaded.
-	 */
-	private static final int MESSAGE_REQUEST_LOADING = 1;
+	 * 空闲的工作线程在这段时间后退出
+	 * */
+	private static final long KEEP_ALIVE_SECONDS = 10;
+
+	private static final int MICRO_KIND = 3;
 
 	/**
-	 * Type of message sent by the loader thread to indicate that some photos
-	 * have been loaded.
-	 */
-	private static final int MESSAGE_ICON_LOADED = 2;
+	 * load的返回值：这个文件要在慢线程池中重新加载
+	 * */
+	private static final Object DEFER_TO_SLOW_LANE = new Object();
 
 	/**
-	 * 抽象类
-	 * 职责：BitmapHolder和DrawableHolder的抽象基类
+	 * 自己生成的图片缩略图的边长，与MediaStore的MICRO_KIND一致
 	 * */
-	private static abstract class ImageHolder {
+	private static final int THUMBNAIL_SIZE = 96;
 
-		/**
-		 * 三种不同的状态
-		 * */
-		public static final int NEEDED = 0;
-		public static final int LOADING = 1;
-		public static final int LOADED = 2;
+	/**
+	 * 图标缓存占应用内存上限的比例的倒数
+	 * */
+	private static final int CACHE_MEMORY_DIVISOR = 8;
+
+	/**
+	 * 每个缓存条目在图片之外的大致开销，加载失败的条目只计这一项
+	 * */
+	private static final int ENTRY_OVERHEAD = 64;
 
-		int state;
+	/**
+	 * 抽象类
+	 * 职责：BitmapHolder和DrawableHolder的抽象基类，持有加载好的图片；图片为null表示加载失败
+	 * */
+	private static abstract class ImageHolder {
 
 		/**
 		 * 静态工厂方法 根据Category-->DrawableHolder|BitmapHolder
 		 * */
-		public static ImageHolder create(FileCategory cate) {
+		public static ImageHolder create(FileCategory cate, Object image) {
 			switch (cate) {
 			case Apk:
-				return new DrawableHolder();
+				return new DrawableHolder((Drawable) image);
 			case Picture:
 			case Video:
-				return new BitmapHolder();
+				return new BitmapHolder((Bitmap) image);
 			}
 
 			return null;
@@ -91,70 +111,97 @@ public class FileIconLoader implements Callback {
 		/**
 		 * 填充ImageView 填充物可以是 Bitmap | Drawable
 		 * */
-		public abstract boolean setImageView(ImageView v);
+		public abstract void setImageView(ImageView v);
 
 		public abstract boolean isNull();
 
 		/**
-		 * 填充软引用 填充物是image 可以是Bitmap | Drawable
+		 * 图片占用的字节数
 		 * */
-		public abstract void setImageRef(Object image);
+		public abstract int getByteCount();
 	}
 
 	/**
-	 * 职责：持有一个Bitmap类型的软引用
+	 * 职责：持有一个Bitmap
 	 * */
 	private static class BitmapHolder extends ImageHolder {
-		SoftReference<Bitmap> bitmapRef;
+		final Bitmap bitmap;
+
+		BitmapHolder(Bitmap bitmap) {
+			this.bitmap = bitmap;
+		}
 
 		@Override
-		public boolean setImageView(ImageView v) {
-			if (bitmapRef.get() == null)
-				return false;
-			v.setImageBitmap(bitmapRef.get());
-			return true;
+		public void setImageView(ImageView v) {
+			v.setImageBitmap(bitmap);
 		}
 
 		@Override
 		public boolean isNull() {
-			return bitmapRef == null;
+			return bitmap == null;
 		}
 
 		@Override
-		public void setImageRef(Object image) {
-			bitmapRef = image == null ? null : new SoftReference<Bitmap>(
-					(Bitmap) image);
+		public int getByteCount() {
+			return bitmap == null ? 0 : bitmap.getRowBytes() * bitmap.getHeight();
 		}
 	}
 
 	private static class DrawableHolder extends ImageHolder {
-		SoftReference<Drawable> drawableRef;
+		final Drawable drawable;
 
-		@Override
-		public boolean setImageView(ImageView v) {
-			if (drawableRef.get() == null)
-				return false;
+		DrawableHolder(Drawable drawable) {
+			this.drawable = drawable;
+		}
 
-			v.setImageDrawable(drawableRef.get());
-			return true;
+		@Override
+		public void setImageView(ImageView v) {
+			v.setImageDrawable(drawable);
 		}
 
 		@Override
 		public boolean isNull() {
-			return drawableRef == null;
+			return drawable == null;
+		}
+
+		@Override
+		public int getByteCount() {
+			if (drawable == null)
+				return 0;
+			if (drawable instanceof BitmapDrawable) {
+				Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+				if (bitmap != null)
+					return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+			// 按ARGB_8888估算
+			return Math.max(0, drawable.getIntrinsicWidth())
+					* Math.max(0, drawable.getIntrinsicHeight()) * 4;
+		}
+	}
+
+	/**
+	 * 按字节数限制大小的LRU缓存，key是文件路径
+	 * */
+	private static class IconCache extends LruCache<String, ImageHolder> {
+		IconCache(int maxBytes) {
+			super(maxBytes);
 		}
 
 		@Override
-		public void setImageRef(Object image) {
-			drawableRef = image == null ? null : new SoftReference<Drawable>(
-					(Drawable) image);
+		protected int sizeOf(String key, ImageHolder value) {
+			return value.getByteCount() + ENTRY_OVERHEAD;
 		}
 	}
 
 	/**
-	 * A soft cache for image thumbnails. the key is file path
-	 */ // 图片软引用缓存
-	private final static ConcurrentHashMap<String, ImageHolder> mImageCache = new ConcurrentHashMap<String, ImageHolder>();
+	 * 所有FileIconLoader共享，第一次创建FileIconLoader时按内存上限确定大小
+	 * */
+	private static IconCache sImageCache;
+
+	/**
+	 * 缩略图的磁盘缓存，与sImageCache同时创建
+	 * */
+	private static ThumbnailDiskCache sDiskCache;
 
 	/**
 	 * A map from ImageView to the corresponding photo ID. Please note that this
@@ -163,26 +210,34 @@ public class FileIconLoader implements Callback {
 	private final ConcurrentHashMap<ImageView, FileId> mPendingRequests = new ConcurrentHashMap<ImageView, FileId>();
 
 	/**
-	 * Handler for messages sent to the UI thread.
-	 */
-	private final Handler mMainThreadHandler = new Handler(this);
+	 * 正在加载的文件路径
+	 * */
+	private final ConcurrentHashMap<String, Boolean> mLoading = new ConcurrentHashMap<String, Boolean>();
 
 	/**
-	 * Thread responsible for loading photos from the database. Created upon the
-	 * first request.
-	 */
-	private LoaderThread mLoaderThread;
+	 * 只在主线程中访问：每个文件路径上等待加载结果的ImageView，加载完成时只通知这些View
+	 * */
+	private final HashMap<String, ArrayList<ImageView>> mWaitingViews = new HashMap<String, ArrayList<ImageView>>();
+
+	/**
+	 * 图片缩略图的线程池
+	 * */
+	private static ThreadPoolExecutor sFastExecutor;
 
 	/**
-	 * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at
-	 * a time.
+	 * APK图标和视频缩略图的线程池
+	 * */
+	private static ThreadPoolExecutor sSlowExecutor;
+
+	/**
+	 * Handler for messages sent to the UI thread.
 	 */
-	private boolean mLoadingRequested;
+	private final Handler mMainThreadHandler = new Handler();
 
 	/**
 	 * Flag indicating if the image loading is paused.
 	 */
-	private boolean mPaused;
+	private volatile boolean mPaused;
 
 	private final Context mContext;
 
@@ -197,6 +252,31 @@ public class FileIconLoader implements Callback {
 	public FileIconLoader(Context context, IconLoadFinishListener l) {
 		mContext = context;
 		iconLoadListener = l;
+		initCache(context);
+	}
+
+	private static synchronized void initCache(Context context) {
+		if (sImageCache != null)
+			return;
+
+		ActivityManager am = (ActivityManager) context
+				.getSystemService(Context.ACTIVITY_SERVICE);
+		int maxBytes = am.getMemoryClass() * 1024 * 1024
+				/ CACHE_MEMORY_DIVISOR;
+		sImageCache = new IconCache(maxBytes);
+		sDiskCache = ThumbnailDiskCache.getInstance(new File(
+				context.getCacheDir(), "thumbnails"));
+	}
+
+	/**
+	 * 图标缓存的统计信息，用于诊断
+	 * */
+	public static String getCacheStats() {
+		IconCache cache = sImageCache;
+		if (cache == null)
+			return "IconCache[not created]";
+		return cache.toString() + " size=" + cache.size() + "/"
+				+ cache.maxSize() + " evictions=" + cache.evictionCount();
 	}
 
 	/**
@@ -234,90 +314,64 @@ public class FileIconLoader implements Callback {
 	 */
 	public boolean loadIcon(ImageView imageView, String path, long dbId,
 			FileCategory cate) {
+		cancelRequest(imageView);
 		// 先从cache中寻找
-		boolean loaded = loadCachedIcon(imageView, path, cate);
-		if (loaded) {
-			// 找到了，不需要后台工作线程加载了
-			mPendingRequests.remove(imageView);
-		} else {
+		boolean loaded = loadCachedIcon(imageView, path);
+		if (!loaded) {
 			// load失败，从db读取
 			FileId p = new FileId(path, dbId, cate);
 			mPendingRequests.put(imageView, p);
+			ArrayList<ImageView> views = mWaitingViews.get(path);
+			if (views == null) {
+				views = new ArrayList<ImageView>(1);
+				mWaitingViews.put(path, views);
+			}
+			views.add(imageView);
 			if (!mPaused) {
-				// Send a request to start loading photos
-				requestLoading();
+				submit(imageView, p);
 			}
 		}
 		return loaded;
 	}
 
 	public void cancelRequest(ImageView view) {
-		mPendingRequests.remove(view);
-	}
-
-	/**
-	 * Checks if the photo is present in cache. If so, sets the photo on the
-	 * view, otherwise sets the state of the photo to
-	 * {@link BitmapHolder#NEEDED}
-	 */
-	private boolean loadCachedIcon(ImageView view, String path,
-			FileCategory cate) {
-		/**
-		 * loadCachedIcon主要做了几件事情：
-		 * 1.获得一个ImageHolder，放在mImageCache
-		 * 2.尽可能为imageView填充Bitmap或Drawable
-		 * 3.如果imageView填充失败，ImageHolder的state置为ImageHolder.NEEDED
-		 * */
-
-		ImageHolder holder = mImageCache.get(path);
-
-		if (holder == null) {
-			holder = ImageHolder.create(cate);
-			if (holder == null)
-				return false;
-
-			mImageCache.put(path, holder);
-		} else if (holder.state == ImageHolder.LOADED) {
-			if (holder.isNull()) {
-				return true;
-			}
-
-			// failing to set imageview means that the soft reference was
-			// released by the GC, we need to reload the photo.
-			if (holder.setImageView(view)) {
-				return true;
+		FileId id = mPendingRequests.remove(view);
+		if (id == null)
+			return;
+
+		ArrayList<ImageView> views = mWaitingViews.get(id.mPath);
+		if (views != null) {
+			views.remove(view);
+			if (views.isEmpty()) {
+				mWaitingViews.remove(id.mPath);
 			}
 		}
-
-		holder.state = ImageHolder.NEEDED;
-		return false;
 	}
 
 	/**
-	 * 通过路径path获取dbId
+	 * 预先加载还没有显示的文件的图标到缓存中，优先级低于已经显示的行
+	 * 暂停期间或已经缓存时什么也不做
 	 * */
-	public long getDbId(String path, boolean isVideo) {
-		String volumeName = "external";
-		// 构造Uri
-		// 图片的Uri是Images.Media.getContentUri(volumeName);
-		Uri uri = isVideo ? Video.Media.getContentUri(volumeName)
-				: Images.Media.getContentUri(volumeName);
-		String selection = FileColumns.DATA + "=?";
-		String[] selectionArgs = new String[] { path };
-
-		String[] columns = new String[] { FileColumns._ID, FileColumns.DATA };
-		// 通过path查找dbId FileColumns.DATA=?
-		Cursor c = mContext.getContentResolver().query(uri, columns, selection,
-				selectionArgs, null);
-		if (c == null) {
-			return 0;
-		}
-		long id = 0;
-		if (c.moveToNext()) {
-			id = c.getLong(0);
+	public void preload(String path, long dbId, FileCategory cate) {
+		if (mPaused || sImageCache.get(path) != null)
+			return;
+		submit(null, new FileId(path, dbId, cate));
+	}
+
+	/**
+	 * Checks if the photo is present in cache. If so, sets the photo on the
+	 * view and returns true.
+	 */
+	private boolean loadCachedIcon(ImageView view, String path) {
+		ImageHolder holder = sImageCache.get(path);
+		if (holder == null)
+			return false;
+
+		// 加载失败的保持默认图标
+		if (!holder.isNull()) {
+			holder.setImageView(view);
 		}
-		c.close();
-		return id;
+		return true;
 	}
 
 	/**
@@ -326,22 +380,34 @@ public class FileIconLoader implements Callback {
 	 */
 	public void stop() {
 		pause();
-
-		if (mLoaderThread != null) {
-			mLoaderThread.quit();
-			mLoaderThread = null;
-		}
-
+		flushDiskCache();
+		// 工作线程是共享的，空闲后自己退出；排队中的任务发现请求已清除后跳过
 		clear();
 	}
 
+	/**
+	 * 保存缩略图磁盘缓存的索引，在工作线程中执行，不阻塞主线程
+	 * 界面进入后台时调用，进程被杀掉时最近生成的缩略图不会丢失
+	 * */
+	public void flushDiskCache() {
+		getSlowExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				sDiskCache.flush();
+			}
+		});
+	}
+
 	public void clear() {
 		mPendingRequests.clear();
-		mImageCache.clear();
+		mWaitingViews.clear();
+		Log.v(LOG_TAG, getCacheStats());
+		sImageCache.evictAll();
 	}
 
 	/**
 	 * Temporarily stops loading
+	 * 列表快速滑动时调用：排队中的任务直接跳过，请求保留到resume时重新提交
 	 */
 	public void pause() {
 		mPaused = true;
@@ -349,179 +415,287 @@ public class FileIconLoader implements Callback {
 
 	/**
 	 * Resumes loading
+	 * 等待中的请求只属于当前绑定着的行，也就是可见的范围
 	 */
 	public void resume() {
+		unpause();
+		resubmitPending();
+	}
+
+	/**
+	 * 只取消暂停，不重新提交等待中的请求
+	 * 用于在可见的行之前插入预加载任务：任务后进先出，之后再调用resubmitPending
+	 * */
+	public void unpause() {
 		mPaused = false;
-		if (!mPendingRequests.isEmpty()) {
-			requestLoading();
-		}
 	}
 
 	/**
-	 * Sends a message to this thread itself to start loading images. If the
-	 * current view contains multiple image views, all of those image views will
-	 * get a chance to request their respective photos before any of those
-	 * requests are executed. This allows us to load images in bulk.
-	 */
-	private void requestLoading() {
-		if (!mLoadingRequested) {
-			mLoadingRequested = true;
-			/**
-			 * handler 发送一个空消息，填充msg.what，Message msg = Message.obtain();
-			 * 这里需要确保Message.obtain()返回的是一个new Message() ？？
-			 * 
-			 * handler处理msg的顺序:
-			 * 1.msg的callback
-			 * 2.handler自身的callback
-			 * 3.重写的handleMessage方法
-			 * */
-			mMainThreadHandler.sendEmptyMessage(MESSAGE_REQUEST_LOADING);
+	 * 重新提交暂停期间积压的请求，暂停期间加载完成的直接显示
+	 * */
+	public void resubmitPending() {
+		// 复制一份：显示已缓存的图标时会修改mPendingRequests
+		ArrayList<Map.Entry<ImageView, FileId>> entries = new ArrayList<Map.Entry<ImageView, FileId>>(
+				mPendingRequests.entrySet());
+		for (Map.Entry<ImageView, FileId> entry : entries) {
+			ImageView view = entry.getKey();
+			FileId id = entry.getValue();
+			// 暂停期间加载完成的直接显示
+			ImageHolder holder = sImageCache.get(id.mPath);
+			if (holder != null) {
+				deliverLoadedIcon(id.mPath, holder);
+			} else {
+				submit(view, id);
+			}
 		}
 	}
 
-	/**
-	 * Processes requests on the main thread.
-	 */
-	public boolean handleMessage(Message msg) {
-		/**
-		 * 这是在主线程中执行的
-		 * */
-		
-		switch (msg.what) {
-		case MESSAGE_REQUEST_LOADING: {
-			mLoadingRequested = false;
-			if (!mPaused) {
-				// 启动一个加载图片的工作线程
-				if (mLoaderThread == null) {
-					mLoaderThread = new LoaderThread();
-					mLoaderThread.start();
-				}
+	private void submit(ImageView view, FileId id) {
+		boolean slowLane = id.mCategory != FileCategory.Picture;
+		ThreadPoolExecutor executor = slowLane ? getSlowExecutor()
+				: getFastExecutor();
+		executor.execute(new LoadTask(view, id, slowLane));
+	}
 
-				mLoaderThread.requestLoading();
-			}
-			return true;
+	private static synchronized ThreadPoolExecutor getFastExecutor() {
+		if (sFastExecutor == null) {
+			sFastExecutor = newExecutor(FAST_WORKERS, "FileIconLoader-fast");
 		}
-		// 工作线程LoaderThread执行结束会执行mMainThreadHandler.sendEmptyMessage(MESSAGE_ICON_LOADED)
-		case MESSAGE_ICON_LOADED: {
-			if (!mPaused) {
-				// 做一些加载后的处理
-				processLoadedIcons();
-			}
-			return true;
+		return sFastExecutor;
+	}
+
+	private static synchronized ThreadPoolExecutor getSlowExecutor() {
+		if (sSlowExecutor == null) {
+			sSlowExecutor = newExecutor(SLOW_WORKERS, "FileIconLoader-slow");
 		}
+		return sSlowExecutor;
+	}
+
+	private static ThreadPoolExecutor newExecutor(int workers, final String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LifoBlockingDeque<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(name) {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						};
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * 后进先出的任务队列：ThreadPoolExecutor用offer入队，这里改为放到队头
+	 * */
+	private static class LifoBlockingDeque<E> extends LinkedBlockingDeque<E> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean offer(E e) {
+			return offerFirst(e);
 		}
-		return false;
 	}
 
 	/**
-	 * Goes over pending loading requests and displays loaded photos. If some of
-	 * the photos still haven't been loaded, sends another request for image
-	 * loading.
-	 */
-	private void processLoadedIcons() {
-		Iterator<ImageView> iterator = mPendingRequests.keySet().iterator();
-		while (iterator.hasNext()) {
-			ImageView view = iterator.next();
-			FileId fileId = mPendingRequests.get(view);
-			// 再一次加载图片，确保最终加载成功
-			boolean loaded = loadCachedIcon(view, fileId.mPath,
-					fileId.mCategory);
-			if (loaded) {
-				// 最终加载图片成功，填充到ImageView
-				iterator.remove();
-				iconLoadListener.onIconLoadFinished(view);
+	 * 在主线程中执行：path加载完成，显示到还在等待它的ImageView上
+	 * 只访问等待这个路径的View，不扫描全部请求
+	 * */
+	private void deliverLoadedIcon(String path, ImageHolder holder) {
+		ArrayList<ImageView> views = mWaitingViews.remove(path);
+		if (views == null)
+			return;
+
+		for (ImageView view : views) {
+			FileId id = mPendingRequests.get(view);
+			if (id == null || !id.mPath.equals(path))
+				continue;
+
+			// 直接使用加载结果，即使它已经被挤出缓存
+			if (!holder.isNull()) {
+				holder.setImageView(view);
 			}
-		}
-		// 对没有加载成功的图片，继续发送加载请求
-		if (!mPendingRequests.isEmpty()) {
-			requestLoading();
+			mPendingRequests.remove(view);
+			iconLoadListener.onIconLoadFinished(view);
 		}
 	}
 
 	/**
-	 * The thread that performs loading of photos from the database.
-	 */
-	private class LoaderThread extends HandlerThread implements Callback {
-		/**
-		 * LoaderThread是一个工作线程，run方法在HandlerThread中，实现了Callback接口，
-		 * 重写了handleMessage方法
-		 * */
+	 * 加载一个ImageView请求的图标；view为null时是预加载，只放入缓存
+	 * */
+	private class LoadTask implements Runnable {
+		private final ImageView mView;
+
+		private final FileId mId;
 
 		/**
-		 * Handler是LoaderThread自己的
+		 * 是否在慢线程池中执行
 		 * */
-		private Handler mLoaderThreadHandler;
+		private final boolean mSlowLane;
 
-		public LoaderThread() {
-			super(LOADER_THREAD_NAME);
+		LoadTask(ImageView view, FileId id, boolean slowLane) {
+			mView = view;
+			mId = id;
+			mSlowLane = slowLane;
 		}
 
-		/**
-		 * Sends a message to this thread to load requested photos.
-		 */
-		public void requestLoading() {
-			if (mLoaderThreadHandler == null) {
-				// 把自己作为CallBack参数传进去
-				mLoaderThreadHandler = new Handler(getLooper(), this);
+		@Override
+		public void run() {
+			// 快速滑动中，resume时重新提交
+			if (mPaused)
+				return;
+			// ImageView已经被复用到其他文件，或者请求已经取消
+			if (mView != null && mPendingRequests.get(mView) != mId)
+				return;
+
+			// 其他任务正在加载同一个文件，完成时会一并通知
+			final String path = mId.mPath;
+			if (mLoading.putIfAbsent(path, Boolean.TRUE) != null)
+				return;
+
+			ImageHolder cached = sImageCache.get(path);
+			final ImageHolder holder;
+			try {
+				if (cached != null) {
+					// 同一个文件的其他任务已经加载完成
+					holder = cached;
+				} else {
+					Object image = load(mId, mSlowLane);
+					if (image == DEFER_TO_SLOW_LANE) {
+						holder = null;
+					} else {
+						holder = ImageHolder.create(mId.mCategory, image);
+						if (holder == null)
+							return;
+						// 失败的结果也缓存，避免反复加载
+						sImageCache.put(path, holder);
+					}
+				}
+			} finally {
+				mLoading.remove(path);
 			}
-			// 在自己的Looper里面进行处理
-			mLoaderThreadHandler.sendEmptyMessage(0);
-		}
 
-		/**
-		 * Receives the above message, loads photos and then sends a message to
-		 * the main thread to process them.
-		 */
-		public boolean handleMessage(Message msg) {
-			Iterator<FileId> iterator = mPendingRequests.values().iterator();
-			while (iterator.hasNext()) {
-				FileId id = iterator.next();
-				ImageHolder holder = mImageCache.get(id.mPath);
-				// 只对state==ImageHolder.NEEDED的ImageHolder进行处理
-				if (holder != null && holder.state == ImageHolder.NEEDED) {
-					// Assuming atomic behavior
-					holder.state = ImageHolder.LOADING;
-					switch (id.mCategory) {
-					case Apk:
-						Drawable icon = Util.getApkIcon(mContext, id.mPath);
-						holder.setImageRef(icon);
-						break;
-					case Picture:
-					case Video:
-						boolean isVideo = id.mCategory == FileCategory.Video;
-						if (id.mId == 0)
-							// 通过path获取dbId
-							id.mId = getDbId(id.mPath, isVideo);
-						if (id.mId == 0) {
-							Log.e("FileIconLoader",
-									"Fail to get dababase id for:" + id.mPath);
-						}
-						// 填充软引用SoftReference
-						holder.setImageRef(isVideo ? getVideoThumbnail(id.mId)
-								: getImageThumbnail(id.mId));
-						break;
-					}
+			if (holder == null) {
+				// 需要完整解码的图片交给慢线程池，不挡住后面的缩略图
+				getSlowExecutor().execute(new LoadTask(mView, mId, true));
+				return;
+			}
 
-					holder.state = BitmapHolder.LOADED;
-					// 为ImageHolder填充完毕，放入缓存
-					mImageCache.put(id.mPath, holder);
+			mMainThreadHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					deliverLoadedIcon(path, holder);
 				}
-			}
-			// 向主线程发送msg
-			mMainThreadHandler.sendEmptyMessage(MESSAGE_ICON_LOADED);
-			return true;
+			});
 		}
+	}
 
-		private static final int MICRO_KIND = 3;
+	/**
+	 * 先查磁盘缓存；APK图标和MediaStore中没有的图片、视频，生成后写入磁盘缓存，下次直接读取
+	 * @param slowLane 不在慢线程池中时不做完整解码
+	 * @return Drawable或Bitmap，失败时为null；需要完整解码而不在慢线程池中时返回DEFER_TO_SLOW_LANE
+	 * */
+	private Object load(FileId id, boolean slowLane) {
+		File file = new File(id.mPath);
+		long fileSize = file.length();
+		long modified = file.lastModified();
+		Bitmap cached = sDiskCache.get(id.mPath, fileSize, modified);
+		if (cached != null) {
+			return id.mCategory == FileCategory.Apk ? new BitmapDrawable(
+					mContext.getResources(), cached) : cached;
+		}
 
-		private Bitmap getImageThumbnail(long dbId) {
-			return Images.Thumbnails.getThumbnail(
-					mContext.getContentResolver(), dbId, MICRO_KIND, null);
+		switch (id.mCategory) {
+		case Apk:
+			Drawable icon = Util.getApkIcon(mContext, id.mPath);
+			Bitmap bitmap = toBitmap(icon);
+			if (bitmap != null) {
+				sDiskCache.put(id.mPath, fileSize, modified, bitmap);
+			}
+			return icon;
+		case Picture:
+		case Video:
+			boolean isVideo = id.mCategory == FileCategory.Video;
+			if (id.mId == 0)
+				// 通过path获取dbId，同一目录只查询一次
+				id.mId = MediaIdResolver.getInstance(mContext).getId(
+						id.mPath, isVideo);
+			if (id.mId != 0) {
+				return isVideo ? getVideoThumbnail(id.mId)
+						: getImageThumbnail(id.mId);
+			}
+
+			// 还没有被媒体库扫描到，自己生成缩略图；完整解码代价大，只在慢线程池中进行
+			if (!slowLane)
+				return DEFER_TO_SLOW_LANE;
+			Bitmap thumbnail = isVideo ? ThumbnailUtils.createVideoThumbnail(
+					id.mPath, MICRO_KIND) : decodeImageThumbnail(id.mPath);
+			if (thumbnail != null) {
+				sDiskCache.put(id.mPath, fileSize, modified, thumbnail);
+			} else {
+				Log.e(LOG_TAG, "Fail to get thumbnail for:" + id.mPath);
+			}
+			return thumbnail;
 		}
+		return null;
+	}
+
+	/**
+	 * 按缩略图大小采样解码，避免把整张大图读入内存
+	 * */
+	private static Bitmap decodeImageThumbnail(String path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
 
-		private Bitmap getVideoThumbnail(long dbId) {
-			return Video.Thumbnails.getThumbnail(mContext.getContentResolver(),
-					dbId, MICRO_KIND, null);
+		int sampleSize = 1;
+		while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+			sampleSize *= 2;
 		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+		if (bitmap == null)
+			return null;
+		return ThumbnailUtils.extractThumbnail(bitmap, THUMBNAIL_SIZE,
+				THUMBNAIL_SIZE, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+	}
+
+	/**
+	 * APK图标通常是BitmapDrawable，其他类型的画到一个Bitmap上
+	 * */
+	private static Bitmap toBitmap(Drawable drawable) {
+		if (drawable == null)
+			return null;
+		if (drawable instanceof BitmapDrawable)
+			return ((BitmapDrawable) drawable).getBitmap();
+
+		int width = drawable.getIntrinsicWidth();
+		int height = drawable.getIntrinsicHeight();
+		if (width <= 0 || height <= 0)
+			return null;
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+				Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		drawable.setBounds(0, 0, width, height);
+		drawable.draw(canvas);
+		return bitmap;
+	}
+
+	private Bitmap getImageThumbnail(long dbId) {
+		return Images.Thumbnails.getThumbnail(mContext.getContentResolver(),
+				dbId, MICRO_KIND, null);
+	}
+
+	private Bitmap getVideoThumbnail(long dbId) {
+		return Video.Thumbnails.getThumbnail(mContext.getContentResolver(),
+				dbId, MICRO_KIND, null);
 	}
 }
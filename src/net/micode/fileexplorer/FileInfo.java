@@ -21,6 +21,11 @@ package net.micode.fileexplorer;
 
 public class FileInfo {
 
+    /**
+     * 目录的Count还没有计算，由DirectoryCountLoader按需填充
+     */
+    public static final int COUNT_UNKNOWN = -1;
+
     public String fileName;
 
     public String filePath;
@@ -37,16 +37,25 @@ public class FileListAdapter extends ArrayAdapter<FileInfo> {
 
     private FileIconHelper mFileIcon;
 
+    private DirectoryCountLoader mCountLoader;
+
     private Context mContext;
 
     public FileListAdapter(Context context, int resource,
             List<FileInfo> objects, FileViewInteractionHub f,
             FileIconHelper fileIcon) {
+        this(context, resource, objects, f, fileIcon, null);
+    }
+
+    public FileListAdapter(Context context, int resource,
+            List<FileInfo> objects, FileViewInteractionHub f,
+            FileIconHelper fileIcon, DirectoryCountLoader countLoader) {
         super(context, resource, objects);
         // 获取LayoutInflater实例
         mInflater = LayoutInflater.from(context); 
         mFileViewInteractionHub = f;
         mFileIcon = fileIcon;
+        mCountLoader = countLoader;
         mContext = context;
     }
 
@@ -68,7 +77,7 @@ public class FileListAdapter extends ArrayAdapter<FileInfo> {
         FileInfo lFileInfo = mFileViewInteractionHub.getItem(position);
         // 填充item
         FileListItem.setupFileListItemInfo(mContext, view, lFileInfo,
-                mFileIcon, mFileViewInteractionHub);
+                mFileIcon, mFileViewInteractionHub, mCountLoader);
         // 为checkbox这个imageView所在FrameLayout设定点击监听
         view.findViewById(R.id.file_checkbox_area).setOnClickListener(
                 new FileListItem.FileItemOnClickListener(mContext,
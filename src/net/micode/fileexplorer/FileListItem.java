@@ -29,6 +29,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 import net.micode.fileexplorer.FileViewInteractionHub.Mode;
 
@@ -42,6 +43,15 @@ public class FileListItem {
     public static void setupFileListItemInfo(Context context, View item,
             FileInfo fileInfo, FileIconHelper fileIcon,
             FileViewInteractionHub fileViewInteractionHub) {
+        setupFileListItemInfo(context, item, fileInfo, fileIcon, fileViewInteractionHub, null);
+    }
+
+    /**
+     * @param countLoader 目录的Count未知时用它在后台计算，可以为null
+     * */
+    public static void setupFileListItemInfo(Context context, View item,
+            FileInfo fileInfo, FileIconHelper fileIcon,
+            FileViewInteractionHub fileViewInteractionHub, DirectoryCountLoader countLoader) {
 
         // if in moving mode, show selected file always
         if (fileViewInteractionHub.isMoveState()) {
@@ -67,7 +77,16 @@ public class FileListItem {
          * 设定item中的textView
          * */
         Util.setText(item, R.id.file_name, fileInfo.fileName);
-        Util.setText(item, R.id.file_count, fileInfo.IsDir ? "(" + fileInfo.Count + ")" : "");
+        TextView countView = (TextView) item.findViewById(R.id.file_count);
+        if (countLoader != null && fileInfo.IsDir) {
+            countLoader.loadCount(countView, fileInfo);
+        } else {
+            if (countLoader != null) {
+                countLoader.cancelRequest(countView);
+            }
+            countView.setText(fileInfo.IsDir && fileInfo.Count != FileInfo.COUNT_UNKNOWN ? "("
+                    + fileInfo.Count + ")" : "");
+        }
         Util.setText(item, R.id.modified_time, Util.formatDateString(context, fileInfo.ModifiedDate));
         Util.setText(item, R.id.file_size, (fileInfo.IsDir ? "" : Util.convertStorage(fileInfo.fileSize)));
 
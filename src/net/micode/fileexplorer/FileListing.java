@@ -0,0 +1,650 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.micode.fileexplorer.FileSortHelper.SortMethod;
+
+/**
+ * 职责：一个目录的文件列表，按列存储
+ * 大小、修改时间、文件数、标志位分别放在并行的基本类型数组中，文件名打包在一个char数组里，
+ * 路径由目录和文件名拼出。显示顺序是一个下标数组，排序只移动下标，比较时直接读数组。
+ * 排序键（大小写折叠后的文件名、扩展名位置）对每个条目只计算一次，换排序方式时复用。
+ * 作为List<FileInfo>交给Adapter：get(i)时才生成第i行的FileInfo，并保留下来，
+ * 这样Selected、Count等状态在同一行上保持一致，没有显示过的行不占对象
+ * */
+public class FileListing extends AbstractList<FileInfo> {
+
+	private static final int FLAG_DIR = 1;
+	private static final int FLAG_CAN_READ = 2;
+	private static final int FLAG_CAN_WRITE = 4;
+	private static final int FLAG_HIDDEN = 8;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * 列表所在的目录，由第一个加入的文件决定
+	 * */
+	private String mDir;
+
+	/**
+	 * 条目数，条目按加入的顺序编号；删除和改名留下的旧条目不再出现在mOrder中
+	 * */
+	private int mEntryCount;
+
+	/**
+	 * 显示的行数，即mOrder的有效长度
+	 * */
+	private int mSize;
+
+	private char[] mNameChars = new char[INITIAL_CAPACITY * 16];
+
+	private int mNameCharsUsed;
+
+	/**
+	 * mNameChars中不再被任何行使用的字符数（删除的行、改名后变长的行留下的）
+	 * */
+	private int mGarbageChars;
+
+	private int[] mNameStart = new int[INITIAL_CAPACITY];
+
+	private int[] mNameLength = new int[INITIAL_CAPACITY];
+
+	/**
+	 * 排序键：与mNameChars一一对应的大小写折叠后的字符，只算到mFoldedUsed为止
+	 * */
+	private char[] mFolded = new char[0];
+
+	private int mFoldedUsed;
+
+	/**
+	 * 文件名中最后一个'.'在mNameChars中的位置，没有时为-1
+	 * */
+	private int[] mDot = new int[INITIAL_CAPACITY];
+
+	private long[] mSizes = new long[INITIAL_CAPACITY];
+
+	private long[] mModified = new long[INITIAL_CAPACITY];
+
+	private int[] mCounts = new int[INITIAL_CAPACITY];
+
+	private byte[] mFlags = new byte[INITIAL_CAPACITY];
+
+	/**
+	 * 已经生成的行，下标是条目编号
+	 * */
+	private FileInfo[] mRows = new FileInfo[INITIAL_CAPACITY];
+
+	/**
+	 * 显示顺序：第i行是条目mOrder[i]
+	 * */
+	private int[] mOrder = new int[INITIAL_CAPACITY];
+
+	private int[] mSortBuffer;
+
+	private SortMethod mSortMethod;
+
+	/**
+	 * mOrder是否按mSortMethod有序；批量add之后为false，直到下一次sort
+	 * */
+	private boolean mSorted;
+
+	private boolean mFileFirst;
+
+	@Override
+	public FileInfo get(int location) {
+		if (location < 0 || location >= mSize)
+			throw new IndexOutOfBoundsException();
+
+		int entry = mOrder[location];
+		FileInfo row = mRows[entry];
+		if (row == null) {
+			row = new FileInfo();
+			row.fileName = getName(entry);
+			row.filePath = Util.makePath(mDir, row.fileName);
+			row.fileSize = mSizes[entry];
+			row.ModifiedDate = mModified[entry];
+			row.Count = mCounts[entry];
+			int flags = mFlags[entry];
+			row.IsDir = (flags & FLAG_DIR) != 0;
+			row.canRead = (flags & FLAG_CAN_READ) != 0;
+			row.canWrite = (flags & FLAG_CAN_WRITE) != 0;
+			row.isHidden = (flags & FLAG_HIDDEN) != 0;
+			mRows[entry] = row;
+		}
+		return row;
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * 复制f的内容追加到末尾，f本身不被保留；不在本目录中的f原样作为行保留
+	 * 追加之后列表不再有序，需要再调用sort
+	 * */
+	@Override
+	public boolean add(FileInfo f) {
+		int entry = appendEntry(f);
+		if (mRows[entry] == null && !mDir.equals(Util.getPathFromFilepath(f.filePath))) {
+			mRows[entry] = f;
+		}
+		mOrder[mSize++] = entry;
+		mSorted = false;
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * 把f按当前的排序插入到合适的位置，f本身作为这一行保留
+	 * 列表有序时二分查找位置，否则追加到末尾
+	 * @return f所在的行
+	 * */
+	public int insert(FileInfo f) {
+		compactIfNeeded();
+		int entry = appendEntry(f);
+		mRows[entry] = f;
+		return reinsertOrder(entry);
+	}
+
+	/**
+	 * @return row所在的行，不在列表中时返回-1
+	 * */
+	public int indexOfRow(FileInfo row) {
+		if (!mSorted) {
+			for (int i = 0; i < mSize; i++) {
+				if (mRows[mOrder[i]] == row)
+					return i;
+			}
+			return -1;
+		}
+
+		// row的内容还与它的条目一致，用一个临时条目做二分查找，找到后丢弃
+		int probe = appendEntry(row);
+		int result = -1;
+		for (int position = lowerBound(probe); position < mSize; position++) {
+			int entry = mOrder[position];
+			if (mRows[entry] == row) {
+				result = position;
+				break;
+			}
+			if (compare(entry, probe) != 0)
+				break;
+		}
+		discardLastEntry();
+		return result;
+	}
+
+	/**
+	 * 按文件名查找，直接比较名字列，不生成行
+	 * @return name所在的行，不在列表中时返回-1
+	 * */
+	public int indexOfName(String name) {
+		int length = name.length();
+		for (int i = 0; i < mSize; i++) {
+			int entry = mOrder[i];
+			if (mNameLength[entry] != length)
+				continue;
+			int start = mNameStart[entry];
+			int j = 0;
+			while (j < length && mNameChars[start + j] == name.charAt(j)) {
+				j++;
+			}
+			if (j == length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 用fresh的属性更新location这一行，并按新属性移到合适的位置
+	 * 条目原地改写，不占新的条目；行对象（及其Selected等状态）保留
+	 * @return 更新后的行
+	 * */
+	public int update(int location, FileInfo fresh) {
+		int entry = removeOrder(location);
+		writeAttributes(entry, fresh);
+		FileInfo row = mRows[entry];
+		if (row != null) {
+			row.fileSize = fresh.fileSize;
+			row.ModifiedDate = fresh.ModifiedDate;
+			row.IsDir = fresh.IsDir;
+			row.Count = fresh.Count;
+			row.canRead = fresh.canRead;
+			row.canWrite = fresh.canWrite;
+			row.isHidden = fresh.isHidden;
+		}
+		return reinsertOrder(entry);
+	}
+
+	@Override
+	public FileInfo remove(int location) {
+		FileInfo row = get(location);
+		int entry = removeOrder(location);
+		mGarbageChars += mNameLength[entry];
+		// 条目留到下一次压缩时回收
+		mRows[entry] = null;
+		return row;
+	}
+
+	/**
+	 * row改名为newPath：从原来的位置移除，按新名字重新插入，row对象（及其Selected等状态）保留
+	 * 条目原地改写，新名字不比旧名字长时连字符也原地改写
+	 * @return 新的行，row不在列表中时返回-1
+	 * */
+	public int rename(FileInfo row, String newPath) {
+		int position = indexOfRow(row);
+		if (position < 0)
+			return -1;
+
+		int entry = removeOrder(position);
+		row.fileName = Util.getNameFromFilepath(newPath);
+		row.filePath = newPath;
+		writeName(entry, row.fileName);
+		if (mSorted) {
+			buildSortKeys();
+		}
+		int result = reinsertOrder(entry);
+		// 压缩只改变条目编号，不改变行的顺序
+		compactIfNeeded();
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		// 释放已经生成的行，列数组保留给下一个目录复用
+		Arrays.fill(mRows, 0, mEntryCount, null);
+		mEntryCount = 0;
+		mSize = 0;
+		mNameCharsUsed = 0;
+		mGarbageChars = 0;
+		mFoldedUsed = 0;
+		mDir = null;
+		mSorted = false;
+		modCount++;
+	}
+
+	/**
+	 * 按sort的排序方式排序，稳定；不生成任何行
+	 * */
+	public void sort(FileSortHelper sort) {
+		mSortMethod = sort.getSortMethod();
+		mFileFirst = sort.isFileFirst();
+		buildSortKeys();
+		if (mSortBuffer == null || mSortBuffer.length < mSize) {
+			mSortBuffer = new int[mOrder.length];
+		}
+		System.arraycopy(mOrder, 0, mSortBuffer, 0, mSize);
+		mergeSort(mSortBuffer, mOrder, 0, mSize);
+		mSorted = true;
+		modCount++;
+	}
+
+	/**
+	 * 批量追加并保持按sort有序：只排序新加入的行，再与已有的行归并，O(n)
+	 * 列表还没有按sort排过序时整个排序；用于分批加载，每批不必重新排整个列表
+	 * */
+	public void addAllSorted(Collection<? extends FileInfo> batch,
+			FileSortHelper sort) {
+		boolean merge = mSorted && mSortMethod == sort.getSortMethod()
+				&& mFileFirst == sort.isFileFirst();
+		int oldSize = mSize;
+		for (FileInfo f : batch) {
+			add(f);
+		}
+		if (!merge) {
+			sort(sort);
+			return;
+		}
+
+		buildSortKeys();
+		if (mSortBuffer == null || mSortBuffer.length < mSize) {
+			mSortBuffer = new int[mOrder.length];
+		}
+		int added = mSize - oldSize;
+		System.arraycopy(mOrder, oldSize, mSortBuffer, oldSize, added);
+		mergeSort(mSortBuffer, mOrder, oldSize, mSize);
+
+		// 从后往前归并，相等时新行排在后面，与稳定排序的结果一致
+		System.arraycopy(mOrder, oldSize, mSortBuffer, 0, added);
+		int i = oldSize - 1;
+		int j = added - 1;
+		for (int k = mSize - 1; j >= 0; k--) {
+			if (i >= 0 && compare(mOrder[i], mSortBuffer[j]) > 0) {
+				mOrder[k] = mOrder[i--];
+			} else {
+				mOrder[k] = mSortBuffer[j--];
+			}
+		}
+		mSorted = true;
+		modCount++;
+	}
+
+	/**
+	 * 把f的内容复制到一个新条目中，返回条目编号；条目还不在mOrder中
+	 * */
+	private int appendEntry(FileInfo f) {
+		if (mDir == null) {
+			mDir = Util.getPathFromFilepath(f.filePath);
+		}
+
+		ensureCapacity(mEntryCount + 1);
+		int entry = mEntryCount++;
+		mNameStart[entry] = mNameCharsUsed;
+		mNameLength[entry] = 0;
+		writeName(entry, f.fileName);
+		writeAttributes(entry, f);
+		mRows[entry] = null;
+		if (mSorted) {
+			// 二分查找要用到新条目的排序键
+			buildSortKeys();
+		}
+		return entry;
+	}
+
+	/**
+	 * 写入entry的文件名：不比原来的长时覆盖原来的字符（同时更新已算好的排序键），否则追加到末尾
+	 * */
+	private void writeName(int entry, String name) {
+		int length = name.length();
+		int start;
+		if (length <= mNameLength[entry]) {
+			start = mNameStart[entry];
+			mGarbageChars += mNameLength[entry] - length;
+			name.getChars(0, length, mNameChars, start);
+			for (int i = start; i < start + length && i < mFoldedUsed; i++) {
+				mFolded[i] = FileSortHelper.fold(mNameChars[i]);
+			}
+		} else {
+			mGarbageChars += mNameLength[entry];
+			if (mNameCharsUsed + length > mNameChars.length) {
+				mNameChars = Arrays.copyOf(mNameChars, Math.max(
+						mNameChars.length * 2, mNameCharsUsed + length));
+			}
+			start = mNameCharsUsed;
+			name.getChars(0, length, mNameChars, start);
+			mNameCharsUsed += length;
+		}
+		mNameStart[entry] = start;
+		mNameLength[entry] = length;
+		int dot = name.lastIndexOf('.');
+		mDot[entry] = dot < 0 ? -1 : start + dot;
+	}
+
+	private void writeAttributes(int entry, FileInfo f) {
+		mSizes[entry] = f.fileSize;
+		mModified[entry] = f.ModifiedDate;
+		mCounts[entry] = f.Count;
+		mFlags[entry] = (byte) ((f.IsDir ? FLAG_DIR : 0)
+				| (f.canRead ? FLAG_CAN_READ : 0)
+				| (f.canWrite ? FLAG_CAN_WRITE : 0)
+				| (f.isHidden ? FLAG_HIDDEN : 0));
+	}
+
+	/**
+	 * 删除和改名留下的条目、字符超过有效部分时，把有效的条目按编号顺序移到前面，名字复制到新的数组
+	 * */
+	private void compactIfNeeded() {
+		if (mEntryCount - mSize <= mSize + INITIAL_CAPACITY
+				&& mGarbageChars <= (mNameCharsUsed - mGarbageChars)
+						+ INITIAL_CAPACITY * 16)
+			return;
+
+		int[] live = Arrays.copyOf(mOrder, mSize);
+		Arrays.sort(live);
+		int[] newIndex = new int[mEntryCount];
+		char[] chars = new char[mNameChars.length];
+		int used = 0;
+		// 按编号从小到大移动，目标位置不会超过源位置
+		for (int j = 0; j < mSize; j++) {
+			int old = live[j];
+			int start = mNameStart[old];
+			int length = mNameLength[old];
+			System.arraycopy(mNameChars, start, chars, used, length);
+			mNameStart[j] = used;
+			mNameLength[j] = length;
+			mDot[j] = mDot[old] < 0 ? -1 : used + (mDot[old] - start);
+			mSizes[j] = mSizes[old];
+			mModified[j] = mModified[old];
+			mCounts[j] = mCounts[old];
+			mFlags[j] = mFlags[old];
+			mRows[j] = mRows[old];
+			used += length;
+			newIndex[old] = j;
+		}
+		for (int i = 0; i < mSize; i++) {
+			mOrder[i] = newIndex[mOrder[i]];
+		}
+		Arrays.fill(mRows, mSize, mEntryCount, null);
+		mEntryCount = mSize;
+		mNameChars = chars;
+		mNameCharsUsed = used;
+		mGarbageChars = 0;
+		// 字符的位置都变了，排序键重新计算
+		mFoldedUsed = 0;
+		if (mSorted) {
+			buildSortKeys();
+		}
+	}
+
+	/**
+	 * 撤销最后一次appendEntry
+	 * */
+	private void discardLastEntry() {
+		int entry = --mEntryCount;
+		mNameCharsUsed = mNameStart[entry];
+		mFoldedUsed = Math.min(mFoldedUsed, mNameCharsUsed);
+		mRows[entry] = null;
+	}
+
+	/**
+	 * 从显示顺序中去掉location这一行，条目保留
+	 * @return 这一行的条目
+	 * */
+	private int removeOrder(int location) {
+		if (location < 0 || location >= mSize)
+			throw new IndexOutOfBoundsException();
+
+		int entry = mOrder[location];
+		System.arraycopy(mOrder, location + 1, mOrder, location, mSize
+				- location - 1);
+		mSize--;
+		modCount++;
+		return entry;
+	}
+
+	/**
+	 * 把不在显示顺序中的entry按当前的排序放回去
+	 * @return entry所在的行
+	 * */
+	private int reinsertOrder(int entry) {
+		int position = mSorted ? upperBound(entry) : mSize;
+		insertOrder(position, entry);
+		return position;
+	}
+
+	private void insertOrder(int position, int entry) {
+		System.arraycopy(mOrder, position, mOrder, position + 1, mSize
+				- position);
+		mOrder[position] = entry;
+		mSize++;
+		modCount++;
+	}
+
+	/**
+	 * 第一个不小于entry的行
+	 * */
+	private int lowerBound(int entry) {
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(mOrder[mid], entry) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * 第一个大于entry的行，插在相等的行之后，与稳定排序的结果一致
+	 * */
+	private int upperBound(int entry) {
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(mOrder[mid], entry) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * 只为上次排序之后新加入的条目计算排序键
+	 * */
+	private void buildSortKeys() {
+		if (mFolded.length < mNameCharsUsed) {
+			mFolded = Arrays.copyOf(mFolded, mNameChars.length);
+		}
+		for (int i = mFoldedUsed; i < mNameCharsUsed; i++) {
+			mFolded[i] = FileSortHelper.fold(mNameChars[i]);
+		}
+		mFoldedUsed = mNameCharsUsed;
+	}
+
+	private String getName(int entry) {
+		return new String(mNameChars, mNameStart[entry], mNameLength[entry]);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= mOrder.length)
+			return;
+
+		int newCapacity = Math.max(capacity, mOrder.length * 2);
+		mNameStart = Arrays.copyOf(mNameStart, newCapacity);
+		mNameLength = Arrays.copyOf(mNameLength, newCapacity);
+		mDot = Arrays.copyOf(mDot, newCapacity);
+		mSizes = Arrays.copyOf(mSizes, newCapacity);
+		mModified = Arrays.copyOf(mModified, newCapacity);
+		mCounts = Arrays.copyOf(mCounts, newCapacity);
+		mFlags = Arrays.copyOf(mFlags, newCapacity);
+		mRows = Arrays.copyOf(mRows, newCapacity);
+		mOrder = Arrays.copyOf(mOrder, newCapacity);
+	}
+
+	/**
+	 * 把src[from, to)排好序放到dest[from, to)，进入时两者内容相同
+	 * */
+	private void mergeSort(int[] src, int[] dest, int from, int to) {
+		int length = to - from;
+		if (length < 7) {
+			// 小区间用插入排序
+			for (int i = from + 1; i < to; i++) {
+				for (int j = i; j > from && compare(dest[j - 1], dest[j]) > 0; j--) {
+					int t = dest[j];
+					dest[j] = dest[j - 1];
+					dest[j - 1] = t;
+				}
+			}
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		mergeSort(dest, src, from, mid);
+		mergeSort(dest, src, mid, to);
+
+		// 已经有序时直接复制
+		if (compare(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, from, dest, from, length);
+			return;
+		}
+
+		for (int i = from, p = from, q = mid; i < to; i++) {
+			if (q >= to || (p < mid && compare(src[p], src[q]) <= 0)) {
+				dest[i] = src[p++];
+			} else {
+				dest[i] = src[q++];
+			}
+		}
+	}
+
+	/**
+	 * 与FileSortHelper中的比较器规则一致
+	 * */
+	private int compare(int a, int b) {
+		boolean dirA = (mFlags[a] & FLAG_DIR) != 0;
+		boolean dirB = (mFlags[b] & FLAG_DIR) != 0;
+		if (dirA != dirB) {
+			if (mFileFirst) {
+				// the files are listed before the dirs
+				return dirA ? 1 : -1;
+			} else {
+				// the dir-s are listed before the files
+				return dirA ? -1 : 1;
+			}
+		}
+
+		switch (mSortMethod) {
+		case size:
+			return compareLong(mSizes[a], mSizes[b]);
+		case date:
+			return compareLong(mModified[b], mModified[a]);
+		case type: {
+			int dotA = mDot[a];
+			int dotB = mDot[b];
+			int startA = mNameStart[a], endA = startA + mNameLength[a];
+			int startB = mNameStart[b], endB = startB + mNameLength[b];
+			// 扩展名，没有'.'时为空
+			int result = FileSortHelper.compareFolded(mFolded,
+					dotA < 0 ? endA : dotA + 1, endA, mFolded,
+					dotB < 0 ? endB : dotB + 1, endB);
+			if (result != 0)
+				return result;
+			// 去掉扩展名的部分，没有'.'时为空，与Util.getNameFromFilename一致
+			return FileSortHelper.compareFolded(mFolded, startA,
+					dotA < 0 ? startA : dotA, mFolded, startB,
+					dotB < 0 ? startB : dotB);
+		}
+		case natural:
+			return FileSortHelper.compareNatural(mFolded, mNameStart[a],
+					mNameStart[a] + mNameLength[a], mFolded, mNameStart[b],
+					mNameStart[b] + mNameLength[b]);
+		case name:
+		default:
+			return FileSortHelper.compareFolded(mFolded, mNameStart[a],
+					mNameStart[a] + mNameLength[a], mFolded, mNameStart[b],
+					mNameStart[b] + mNameLength[b]);
+		}
+	}
+
+	private static int compareLong(long a, long b) {
+		return a > b ? 1 : (a < b ? -1 : 0);
+	}
+}
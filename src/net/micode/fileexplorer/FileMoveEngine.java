@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * 职责：移动（剪切）文件
+ * 源和目标在同一个挂载点上时直接rename，是原子的；
+ * 跨挂载点（例如内部存储到外置SD卡）时先复制到目标目录下的隐藏暂存名，
+ * 校验后rename成最终名字，最后才删除源文件。中途崩溃只会留下暂存文件，源文件完好
+ * */
+public class FileMoveEngine {
+	private static final String LOG_TAG = "FileMoveEngine";
+
+	/**
+	 * 暂存名前缀，残留的暂存文件在下一次跨卷移动到同一目录时清除
+	 * */
+	private static final String STAGING_PREFIX = ".fe-moving-";
+
+	private static final String MOUNTS_FILE = "/proc/mounts";
+
+	private final FileCopyEngine mCopyEngine;
+
+	/**
+	 * 挂载点，按长度从长到短排列，最先匹配的就是最深的挂载点
+	 * */
+	private ArrayList<String> mMountPoints;
+
+	private int mSourcesLeft;
+
+	/**
+	 * @param copyEngine 跨卷移动时使用，进度和取消都通过它
+	 * */
+	public FileMoveEngine(FileCopyEngine copyEngine) {
+		mCopyEngine = copyEngine;
+		mCopyEngine.setIncludeHidden(true);
+	}
+
+	/**
+	 * 把files移动到dest目录下，目标已存在同名文件时跳过
+	 * @return 移动失败的项数
+	 * */
+	public int move(List<FileInfo> files, String dest) {
+		File destDir = new File(dest);
+		loadMountPoints();
+		String destMount = getMountPoint(destDir);
+		boolean cleaned = false;
+		int failed = 0;
+		mSourcesLeft = 0;
+		for (FileInfo f : files) {
+			if (mCopyEngine.isCancelled())
+				break;
+
+			File src = new File(f.filePath);
+			// 不能移动到自己或自己的子目录中，否则复制时会递归进自己的暂存目录
+			if (src.isDirectory()
+					&& Util.containsPath(src.getAbsolutePath(),
+							destDir.getAbsolutePath())) {
+				Log.e(LOG_TAG, "move: cannot move a directory into itself, "
+						+ src);
+				failed++;
+				continue;
+			}
+			File target = new File(destDir, src.getName());
+			if (target.exists()) {
+				Log.e(LOG_TAG, "move: target exists, " + target);
+				failed++;
+				continue;
+			}
+
+			boolean sameVolume = destMount.equals(getMountPoint(src));
+			// 挂载点判断不准时rename失败，照样退回到复制
+			if (sameVolume && rename(src, target))
+				continue;
+
+			if (!cleaned) {
+				cleanStaleStaging(destDir);
+				cleaned = true;
+			}
+			if (!copyAndDelete(src, target))
+				failed++;
+		}
+		return failed;
+	}
+
+	private boolean rename(File src, File target) {
+		try {
+			return src.renameTo(target);
+		} catch (SecurityException e) {
+			Log.e(LOG_TAG, "Fail to move file," + e.toString());
+		}
+		return false;
+	}
+
+	private boolean copyAndDelete(File src, File target) {
+		File staging = new File(target.getParentFile(), STAGING_PREFIX
+				+ src.getName());
+		if (staging.exists())
+			deleteRecursively(staging);
+
+		if (!mCopyEngine.copyTo(src, staging) || !staging.renameTo(target)) {
+			deleteRecursively(staging);
+			return false;
+		}
+
+		// 目标已完整落地，才删除源文件；删不干净时数据在两处都有，算作失败
+		if (!deleteRecursively(src)) {
+			Log.e(LOG_TAG, "move: source not fully removed, " + src);
+			mSourcesLeft++;
+			return false;
+		}
+		Log.v(LOG_TAG, "move >>> " + src + " -> " + target);
+		return true;
+	}
+
+	/**
+	 * @return 上一次move中已经复制到目标、但源文件没能删除干净的项数，这些项也计入了失败数
+	 * */
+	public int getSourcesLeft() {
+		return mSourcesLeft;
+	}
+
+	private void cleanStaleStaging(File dir) {
+		String[] names = dir.list();
+		if (names == null)
+			return;
+
+		for (String name : names) {
+			if (name.startsWith(STAGING_PREFIX)) {
+				Log.v(LOG_TAG, "remove stale staging " + name);
+				deleteRecursively(new File(dir, name));
+			}
+		}
+	}
+
+	private static boolean deleteRecursively(File f) {
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					// 与复制时一致，不碰.android_secure
+					if (Util.isNormalFile(child.getAbsolutePath()))
+						deleteRecursively(child);
+				}
+			}
+		}
+		return f.delete();
+	}
+
+	private void loadMountPoints() {
+		mMountPoints = new ArrayList<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(MOUNTS_FILE));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// 格式：设备 挂载点 类型 选项 0 0，挂载点中的空格写作\040
+				String[] fields = line.split(" ");
+				if (fields.length > 1) {
+					mMountPoints.add(fields[1].replace("\\040", " "));
+				}
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Fail to read " + MOUNTS_FILE + "," + e.toString());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		Collections.sort(mMountPoints, new Comparator<String>() {
+			@Override
+			public int compare(String lhs, String rhs) {
+				return rhs.length() - lhs.length();
+			}
+		});
+	}
+
+	private String getMountPoint(File f) {
+		String path;
+		try {
+			path = f.getCanonicalPath();
+		} catch (IOException e) {
+			path = f.getAbsolutePath();
+		}
+
+		for (String mount : mMountPoints) {
+			if (path.equals(mount) || mount.equals(GlobalConsts.ROOT_PATH)
+					|| path.startsWith(mount + "/"))
+				return mount;
+		}
+		return GlobalConsts.ROOT_PATH;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import android.os.FileObserver;
+
+/**
+ * 基于inotify的目录监视，只监视当前目录这一层
+ * 只关心会改变列表内容的事件：MODIFY在写大文件时非常频繁，用CLOSE_WRITE代替
+ * */
+public class FileObserverBackend implements DirectoryWatcher.Backend {
+
+	private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE
+			| FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+			| FileObserver.CLOSE_WRITE | FileObserver.ATTRIB
+			| FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+	/**
+	 * FileObserver被回收时会停止监视，必须持有引用
+	 * */
+	private FileObserver mObserver;
+
+	@Override
+	public synchronized void start(String dir, final DirectoryWatcher watcher) {
+		stop();
+		mObserver = new FileObserver(dir, EVENTS) {
+			@Override
+			public void onEvent(int event, String path) {
+				event &= FileObserver.ALL_EVENTS;
+				if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+					watcher.onEvent(null);
+				} else if (event != 0 && path != null) {
+					watcher.onEvent(path);
+				}
+			}
+		};
+		mObserver.startWatching();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (mObserver != null) {
+			mObserver.stopWatching();
+			mObserver = null;
+		}
+	}
+}
@@ -45,10 +45,25 @@ public class FileOperationHelper {
 
 	private FilenameFilter mFilter;
 
+	/**
+	 * 正在进行的复制或移动，用于取消
+	 * */
+	private volatile FileCopyEngine mCopyEngine;
+
 	public interface IOperationProgressListener {
 		void onFinish();
 
 		void onFileChanged(String path);
+
+		/**
+		 * 在后台线程中回调，调用频率已节流；filesTotal随遍历进行而增长
+		 * */
+		void onProgress(int filesDone, int filesTotal, long bytesDone);
+
+		/**
+		 * 在后台线程中回调：移动时有count项已复制到目标，但源文件没能删除
+		 * */
+		void onMoveSourcesLeft(int count);
 	}
 
 	public FileOperationHelper(IOperationProgressListener l) {
@@ -66,7 +81,12 @@ public class FileOperationHelper {
 		if (f.exists())
 			return false;
 
-		return f.mkdir();
+		DirectorySnapshotCache.getInstance().invalidate(path);
+		if (!f.mkdir())
+			return false;
+
+		FileSearchIndex.getInstance().add(f.getPath(), true);
+		return true;
 	}
 
 	/**
@@ -84,13 +104,26 @@ public class FileOperationHelper {
 			return false;
 
 		final String _path = path;
+		// 复制的是快照，不在整个复制过程中占用mCurFileNameList的锁
+		final ArrayList<FileInfo> files;
+		synchronized (mCurFileNameList) {
+			files = new ArrayList<FileInfo>(mCurFileNameList);
+		}
+		final FileCopyEngine engine = new FileCopyEngine(mFilter,
+				mOperationListener);
+		mCopyEngine = engine;
 		// 后台线程执行copy
 		asnycExecute(new Runnable() {
 			@Override
 			public void run() {
-				for (FileInfo f : mCurFileNameList) {
-					CopyFile(f, _path);
+				int failed = engine.copy(files, _path);
+				if (failed > 0) {
+					Log.e(LOG_TAG, "Paste: " + failed + " files failed");
 				}
+				mCopyEngine = null;
+				DirectorySnapshotCache.getInstance().invalidate(_path);
+				// 复制的目标名字可能被改过，按目录内容更新搜索索引
+				FileSearchIndex.getInstance().syncDirectory(_path);
 				// 调用回调方法，传入sd根目录
 				mOperationListener.onFileChanged(Environment
 						.getExternalStorageDirectory().getAbsolutePath());
@@ -102,6 +135,16 @@ public class FileOperationHelper {
 		return true;
 	}
 
+	/**
+	 * 取消正在进行的复制或移动，已完成的文件保留
+	 * */
+	public void cancel() {
+		FileCopyEngine engine = mCopyEngine;
+		if (engine != null) {
+			engine.cancel();
+		}
+	}
+
 	public boolean canPaste() {
 		return mCurFileNameList.size() != 0;
 	}
@@ -148,13 +191,30 @@ public class FileOperationHelper {
 			return false;
 
 		final String _path = path;
+		final ArrayList<FileInfo> files;
+		synchronized (mCurFileNameList) {
+			files = new ArrayList<FileInfo>(mCurFileNameList);
+		}
+		final FileCopyEngine engine = new FileCopyEngine(null,
+				mOperationListener);
+		mCopyEngine = engine;
 		asnycExecute(new Runnable() {
 			@Override
 			public void run() {
-				// 这里没有获取对象锁！！
-				for (FileInfo f : mCurFileNameList) {
-					MoveFile(f, _path);
+				FileMoveEngine moveEngine = new FileMoveEngine(engine);
+				int failed = moveEngine.move(files, _path);
+				if (failed > 0) {
+					Log.e(LOG_TAG, "EndMove: " + failed + " files failed");
 				}
+				if (moveEngine.getSourcesLeft() > 0) {
+					mOperationListener.onMoveSourcesLeft(moveEngine
+							.getSourcesLeft());
+				}
+				mCopyEngine = null;
+				DirectorySnapshotCache.getInstance().invalidate(_path);
+				invalidateSnapshots(files);
+				FileSearchIndex.getInstance().syncDirectory(_path);
+				removeFromSearchIndex(files);
 
 				mOperationListener.onFileChanged(Environment
 						.getExternalStorageDirectory().getAbsolutePath());
@@ -175,9 +235,8 @@ public class FileOperationHelper {
 		new AsyncTask() {
 			@Override
 			protected Object doInBackground(Object... params) {
-				synchronized (mCurFileNameList) {
-					_r.run();
-				}
+				// 需要锁的操作自己获取mCurFileNameList的锁
+				_r.run();
 				if (mOperationListener != null) {
 					mOperationListener.onFinish();
 				}
@@ -215,6 +274,8 @@ public class FileOperationHelper {
 			// 使用了剪切
 			boolean ret = file.renameTo(new File(newPath));
 			if (ret) {
+				invalidateSnapshot(f);
+				FileSearchIndex.getInstance().rename(f.filePath, newPath);
 				if (needScan) {
 					mOperationListener.onFileChanged(f.filePath);
 				}
@@ -235,8 +296,12 @@ public class FileOperationHelper {
 		asnycExecute(new Runnable() {
 			@Override
 			public void run() {
-				for (FileInfo f : mCurFileNameList) {
-					DeleteFile(f);
+				synchronized (mCurFileNameList) {
+					for (FileInfo f : mCurFileNameList) {
+						DeleteFile(f);
+					}
+					invalidateSnapshots(mCurFileNameList);
+					removeFromSearchIndex(mCurFileNameList);
 				}
 
 				mOperationListener.onFileChanged(Environment
@@ -274,63 +339,32 @@ public class FileOperationHelper {
 	}
 
 	/**
-	 * 作用：这才是货真价实的copy，不过具体的copy还是调用的Util.copy
-	 * 注意：递归调用，空目录不复制
+	 * 文件f被删除、移走或改名：作废所在目录的快照，f是目录时连同其下所有快照
 	 * */
-	private void CopyFile(FileInfo f, String dest) {
-		if (f == null || dest == null) {
-			Log.e(LOG_TAG, "CopyFile: null parameter");
-			return;
+	private void invalidateSnapshot(FileInfo f) {
+		DirectorySnapshotCache cache = DirectorySnapshotCache.getInstance();
+		cache.invalidate(Util.getPathFromFilepath(f.filePath));
+		if (f.IsDir) {
+			cache.invalidateTree(f.filePath);
 		}
+	}
 
-		File file = new File(f.filePath);
-		// 空目录并没有复制
-		if (file.isDirectory()) {
-
-			// directory exists in destination, rename it
-			String destPath = Util.makePath(dest, f.fileName);
-			File destFile = new File(destPath);
-			int i = 1;
-			// 存在，重命名
-			while (destFile.exists()) {
-				destPath = Util.makePath(dest, f.fileName + " " + i++);
-				destFile = new File(destPath);
-			}
-			for (File child : file.listFiles(mFilter)) {
-				if (!child.isHidden()
-						&& Util.isNormalFile(child.getAbsolutePath())) {
-					CopyFile(Util.GetFileInfo(child, mFilter, Settings
-							.instance().getShowDotAndHiddenFiles()), destPath);
-				}
-			}
-		} else {
-			String destFile = Util.copyFile(f.filePath, dest);
+	private void invalidateSnapshots(ArrayList<FileInfo> files) {
+		for (FileInfo f : files) {
+			invalidateSnapshot(f);
 		}
-		Log.v(LOG_TAG, "CopyFile >>> " + f.filePath + "," + dest);
 	}
 
 	/**
-	 * 作用：剪切，目标文件f移动到新的路径dest下
-	 * @param f 目标文件
-	 * @param dest 新的路径
+	 * 已经不存在的文件从搜索索引中去掉，删除或移动失败的保留
 	 * */
-	private boolean MoveFile(FileInfo f, String dest) {
-		Log.v(LOG_TAG, "MoveFile >>> " + f.filePath + "," + dest);
-
-		if (f == null || dest == null) {
-			Log.e(LOG_TAG, "CopyFile: null parameter");
-			return false;
-		}
-
-		File file = new File(f.filePath);
-		String newPath = Util.makePath(dest, f.fileName);
-		try {
-			// 剪切到新的路径下
-			return file.renameTo(new File(newPath));
-		} catch (SecurityException e) {
-			Log.e(LOG_TAG, "Fail to move file," + e.toString());
+	private static void removeFromSearchIndex(ArrayList<FileInfo> files) {
+		FileSearchIndex index = FileSearchIndex.getInstance();
+		for (FileInfo f : files) {
+			if (!new File(f.filePath).exists()) {
+				index.remove(f.filePath);
+			}
 		}
-		return false;
 	}
 
 	/**
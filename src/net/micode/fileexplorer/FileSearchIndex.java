@@ -0,0 +1,1021 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * 职责：文件名搜索索引
+ * 路径按目录树存储：每个条目只记录父条目和文件名；文件名折叠大小写后按三个字符一组（trigram）建倒排表，
+ * 查询时只检查查询串中最少见的三元组的倒排表，不遍历文件系统。
+ * 索引在后台线程中遍历存储卡建立并保存到磁盘，下次启动时先加载旧索引、再在后台更新；
+ * 应用自己的文件操作和目录监视通过add、remove、rename、syncDirectory增量更新
+ * */
+public class FileSearchIndex {
+	private static final String LOG_TAG = "FileSearchIndex";
+
+	private static final int MAGIC = 0x46455349;
+
+	private static final int VERSION = 1;
+
+	private static final int FLAG_DIR = 1;
+
+	private static final int FLAG_HIDDEN = 2;
+
+	private static final int FLAG_DELETED = 4;
+
+	/**
+	 * 不跟进更深的目录，防止符号链接造成的循环
+	 * */
+	private static final int MAX_DEPTH = 32;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * 增量更新后等待这么久再保存，连续的修改只保存一次
+	 * */
+	private static final long SAVE_DELAY_MS = 10 * 1000;
+
+	private static FileSearchIndex sInstance;
+
+	private int mCount;
+
+	/**
+	 * 父条目，根条目为-1，根条目的名字是完整路径
+	 * */
+	private int[] mParent = new int[INITIAL_CAPACITY];
+
+	private int[] mNameStart = new int[INITIAL_CAPACITY];
+
+	private int[] mNameLength = new int[INITIAL_CAPACITY];
+
+	private byte[] mFlags = new byte[INITIAL_CAPACITY];
+
+	/**
+	 * 最后一次被遍历看到时的遍历代数；一次遍历结束时，没有被看到的条目已经不存在
+	 * */
+	private int[] mSeen = new int[INITIAL_CAPACITY];
+
+	private char[] mNames = new char[INITIAL_CAPACITY * 16];
+
+	/**
+	 * 与mNames对应的折叠大小写后的文件名
+	 * */
+	private char[] mFolded = new char[INITIAL_CAPACITY * 16];
+
+	private int mNamesUsed;
+
+	/**
+	 * 被标记删除的条目数（不含随之失效的子孙），过多时压缩
+	 * */
+	private int mDeleted;
+
+	/**
+	 * (父条目, 文件名)到条目的开放寻址散列表，-1为空；删除的条目留在表中，查找时跳过
+	 * */
+	private int[] mLookup = newTable(INITIAL_CAPACITY * 2);
+
+	private int mLookupUsed;
+
+	/**
+	 * 三元组到倒排表编号的开放寻址散列表
+	 * */
+	private long[] mTrigramKeys = new long[INITIAL_CAPACITY * 2];
+
+	private int[] mTrigramSlots = newTable(INITIAL_CAPACITY * 2);
+
+	/**
+	 * 倒排表，条目编号递增
+	 * */
+	private int[][] mPostings = new int[INITIAL_CAPACITY][];
+
+	private int[] mPostingSizes = new int[INITIAL_CAPACITY];
+
+	private int mTrigramCount;
+
+	private final ArrayList<Integer> mRoots = new ArrayList<Integer>();
+
+	private int mGeneration;
+
+	/**
+	 * 正在进行的目录树遍历数，遍历持有条目编号，此时不能压缩
+	 * */
+	private int mTreeWalks;
+
+	private Thread mThread;
+
+	/**
+	 * 遍历进行中被改名的目录：旧条目到新条目，遍历取到旧条目时转到新条目；遍历全部结束后清空
+	 * */
+	private final HashMap<Integer, Integer> mMovedDirs = new HashMap<Integer, Integer>();
+
+	private File mStore;
+
+	/**
+	 * 第一次遍历完成并保存后，增量更新才另外安排保存
+	 * */
+	private boolean mCrawled;
+
+	private boolean mSaveScheduled;
+
+	/**
+	 * 保证同一时刻只有一个线程写索引文件
+	 * */
+	private final Object mSaveLock = new Object();
+
+	private ScheduledExecutorService mScheduler;
+
+	private FileSearchIndex() {
+	}
+
+	public static synchronized FileSearchIndex getInstance() {
+		if (sInstance == null) {
+			sInstance = new FileSearchIndex();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 在后台线程中加载store中保存的索引，然后遍历root更新并保存；只有第一次调用有效
+	 * */
+	public synchronized void start(final File store, final String root) {
+		if (mThread != null)
+			return;
+
+		mStore = store;
+		mThread = new Thread("FileSearchIndex") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				load(store);
+				crawl(root);
+				save(store);
+				synchronized (FileSearchIndex.this) {
+					mCrawled = true;
+				}
+			}
+		};
+		mThread.start();
+	}
+
+	/**
+	 * 查询文件名
+	 * @param text 折叠大小写后比较；为空时只按扩展名过滤
+	 * @param prefix true时要求文件名以text开头，否则包含text即可
+	 * @param extension 不带点的扩展名，为null时不过滤
+	 * @param limit 最多返回的结果数
+	 * @return 完整路径，按索引顺序
+	 * */
+	public synchronized ArrayList<String> search(String text, boolean prefix,
+			String extension, boolean showHidden, int limit) {
+		ArrayList<String> result = new ArrayList<String>();
+		char[] query = FileSortHelper.foldCase(text);
+		char[] suffix = extension != null ? FileSortHelper.foldCase("."
+				+ extension) : null;
+
+		// 取最短的倒排表作为候选；查询串太短时只能逐个检查
+		char[] key = query.length >= 3 ? query : suffix != null
+				&& suffix.length >= 3 ? suffix : null;
+		int slot = -1;
+		if (key != null) {
+			for (int i = 0; i + 3 <= key.length; i++) {
+				int s = findTrigram(trigram(key, i));
+				if (s < 0)
+					return result;
+				if (slot < 0 || mPostingSizes[s] < mPostingSizes[slot]) {
+					slot = s;
+				}
+			}
+		}
+
+		int candidates = slot >= 0 ? mPostingSizes[slot] : mCount;
+		for (int i = 0; i < candidates && result.size() < limit; i++) {
+			int entry = slot >= 0 ? mPostings[slot][i] : i;
+			if (mParent[entry] < 0 || !matches(entry, query, prefix, suffix)
+					|| !isVisible(entry, showHidden))
+				continue;
+			result.add(getPath(entry));
+		}
+		return result;
+	}
+
+	/**
+	 * path被创建；所在目录不在索引中时忽略
+	 * */
+	public synchronized void add(String path, boolean isDir) {
+		int parent = resolve(Util.getPathFromFilepath(path));
+		if (parent < 0)
+			return;
+
+		String name = Util.getNameFromFilepath(path);
+		if (findChild(parent, name) < 0) {
+			addEntry(parent, name, isDir);
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * path被删除或移走，其下的条目随之失效
+	 * */
+	public synchronized void remove(String path) {
+		int entry = resolve(path);
+		if (entry >= 0 && mParent[entry] >= 0) {
+			markDeleted(entry);
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * oldPath改名或移动为newPath；目录下的条目改挂到新条目下，不需要重新遍历
+	 * */
+	public synchronized void rename(String oldPath, String newPath) {
+		int entry = resolve(oldPath);
+		int parent = resolve(Util.getPathFromFilepath(newPath));
+		if (entry < 0 || parent < 0 || mParent[entry] < 0) {
+			if (entry >= 0 && mParent[entry] >= 0)
+				markDeleted(entry);
+			if (parent >= 0)
+				add(newPath, new File(newPath).isDirectory());
+			return;
+		}
+
+		boolean isDir = (mFlags[entry] & FLAG_DIR) != 0;
+		int renamed = addEntry(parent, Util.getNameFromFilepath(newPath), isDir);
+		markDeleted(entry);
+		if (isDir) {
+			for (int i = 0; i < mCount; i++) {
+				if (mParent[i] == entry)
+					mParent[i] = renamed;
+			}
+			// 子条目的散列值随父条目改变
+			rebuildLookup();
+			if (mTreeWalks > 0) {
+				// 正在进行的遍历会跳过已删除的旧条目：移过来的子树算作已经看到，
+				// 旧条目还在遍历的待办中时转到新条目，否则结束时的清理会把整个子树标记删除
+				for (int i = 0; i < mCount; i++) {
+					if (isUnder(i, renamed))
+						mSeen[i] = mGeneration;
+				}
+				mMovedDirs.put(entry, renamed);
+			}
+		}
+		scheduleSave();
+	}
+
+	/**
+	 * 使索引中path目录的直接子条目与磁盘一致，新出现的目录整个加入；
+	 * 复制、移动等不知道具体目标名字的操作完成后调用，会访问磁盘
+	 * */
+	public void syncDirectory(String path) {
+		File dir = new File(path);
+		File[] children = dir.listFiles();
+		if (children == null)
+			return;
+
+		boolean[] isDir = new boolean[children.length];
+		for (int i = 0; i < children.length; i++) {
+			isDir[i] = children[i].isDirectory();
+		}
+
+		ArrayList<Integer> newDirs = new ArrayList<Integer>();
+		int generation;
+		synchronized (this) {
+			int entry = resolve(path);
+			if (entry < 0)
+				return;
+
+			generation = mGeneration;
+			HashSet<String> names = new HashSet<String>();
+			for (int i = 0; i < children.length; i++) {
+				String name = children[i].getName();
+				names.add(name);
+				syncChild(entry, name, isDir[i], newDirs);
+			}
+
+			for (int i = 0; i < mCount; i++) {
+				if (mParent[i] == entry && (mFlags[i] & FLAG_DELETED) == 0
+						&& !names.contains(getName(i)))
+					markDeleted(i);
+			}
+			mTreeWalks++;
+		}
+		walkNewDirs(newDirs, generation);
+	}
+
+	/**
+	 * 只同步path目录下names这几个子条目，新出现的目录整个加入；
+	 * 目录监视已经报告了变化的名字时使用，不需要列出整个目录
+	 * */
+	public void syncChildren(String path, List<String> names) {
+		int size = names.size();
+		boolean[] exists = new boolean[size];
+		boolean[] isDir = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			File child = new File(path, names.get(i));
+			isDir[i] = child.isDirectory();
+			exists[i] = isDir[i] || child.exists();
+		}
+
+		ArrayList<Integer> newDirs = new ArrayList<Integer>();
+		int generation;
+		synchronized (this) {
+			int entry = resolve(path);
+			if (entry < 0)
+				return;
+
+			generation = mGeneration;
+			for (int i = 0; i < size; i++) {
+				String name = names.get(i);
+				if (exists[i]) {
+					syncChild(entry, name, isDir[i], newDirs);
+				} else {
+					int child = findChild(entry, name);
+					if (child >= 0)
+						markDeleted(child);
+				}
+			}
+			if (newDirs.isEmpty()) {
+				scheduleSave();
+				return;
+			}
+			mTreeWalks++;
+		}
+		walkNewDirs(newDirs, generation);
+	}
+
+	/**
+	 * 使parent下的name条目与磁盘一致，新加入的目录放入newDirs等待遍历
+	 * */
+	private void syncChild(int parent, String name, boolean isDir,
+			ArrayList<Integer> newDirs) {
+		int child = findChild(parent, name);
+		if (child >= 0 && ((mFlags[child] & FLAG_DIR) != 0) == isDir)
+			return;
+		if (child >= 0)
+			markDeleted(child);
+		child = addEntry(parent, name, isDir);
+		if (isDir)
+			newDirs.add(child);
+	}
+
+	/**
+	 * 在锁外遍历新加入的目录，调用前已经在锁内增加了mTreeWalks
+	 * */
+	private void walkNewDirs(ArrayList<Integer> newDirs, int generation) {
+		try {
+			for (int child : newDirs) {
+				walk(child, generation);
+			}
+		} finally {
+			endTreeWalk();
+		}
+		synchronized (this) {
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * 遍历root之下的整个树，遍历中没有看到的条目标记为删除
+	 * */
+	private void crawl(String root) {
+		long start = System.currentTimeMillis();
+		int entry;
+		int generation;
+		synchronized (this) {
+			generation = ++mGeneration;
+			entry = resolve(root);
+			if (entry < 0) {
+				entry = addEntry(-1, root, true);
+				mRoots.add(entry);
+			}
+			mSeen[entry] = generation;
+			mTreeWalks++;
+		}
+
+		try {
+			walk(entry, generation);
+		} finally {
+			endTreeWalk();
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < mCount; i++) {
+				if (mSeen[i] != generation && (mFlags[i] & FLAG_DELETED) == 0
+						&& isUnder(i, entry))
+					markDeleted(i);
+			}
+		}
+		Log.v(LOG_TAG, "crawl >>> " + root + ", entries: " + mCount + ", "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * 遍历entry目录下的整个树：列目录和stat在锁外，修改索引在锁内
+	 * 调用者负责mTreeWalks计数
+	 * */
+	private void walk(int entry, int generation) {
+		ArrayList<Integer> pendingEntries = new ArrayList<Integer>();
+		ArrayList<Integer> pendingDepths = new ArrayList<Integer>();
+		pendingEntries.add(entry);
+		pendingDepths.add(0);
+
+		while (!pendingEntries.isEmpty()) {
+			int last = pendingEntries.size() - 1;
+			int dirEntry = pendingEntries.remove(last);
+			int depth = pendingDepths.remove(last);
+
+			String path;
+			synchronized (this) {
+				// 遍历开始后被改名的目录
+				Integer moved;
+				while ((moved = mMovedDirs.get(dirEntry)) != null) {
+					dirEntry = moved;
+				}
+				if (!isVisible(dirEntry, true))
+					continue;
+				path = getPath(dirEntry);
+			}
+
+			File[] children = new File(path).listFiles();
+			if (children == null)
+				continue;
+			boolean[] isDir = new boolean[children.length];
+			for (int i = 0; i < children.length; i++) {
+				isDir[i] = children[i].isDirectory();
+			}
+
+			synchronized (this) {
+				for (int i = 0; i < children.length; i++) {
+					String name = children[i].getName();
+					int child = findChild(dirEntry, name);
+					if (child >= 0
+							&& ((mFlags[child] & FLAG_DIR) != 0) != isDir[i]) {
+						markDeleted(child);
+						child = -1;
+					}
+					if (child < 0) {
+						child = addEntry(dirEntry, name, isDir[i]);
+					}
+					mSeen[child] = generation;
+					if (isDir[i] && depth < MAX_DEPTH) {
+						pendingEntries.add(child);
+						pendingDepths.add(depth + 1);
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized void endTreeWalk() {
+		if (--mTreeWalks == 0) {
+			// 条目编号只在遍历期间有效
+			mMovedDirs.clear();
+		}
+	}
+
+	/**
+	 * 增量更新后调用，持有this的锁：SAVE_DELAY_MS之后在后台保存，期间的修改一并保存
+	 * */
+	private void scheduleSave() {
+		if (!mCrawled || mSaveScheduled)
+			return;
+
+		mSaveScheduled = true;
+		if (mScheduler == null) {
+			mScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FileSearchIndex-save");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		mScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (FileSearchIndex.this) {
+					mSaveScheduled = false;
+				}
+				save(mStore);
+			}
+		}, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean matches(int entry, char[] query, boolean prefix,
+			char[] suffix) {
+		int start = mNameStart[entry];
+		int length = mNameLength[entry];
+		if (suffix != null
+				&& (length < suffix.length || !regionMatches(start + length
+						- suffix.length, suffix)))
+			return false;
+
+		if (query.length == 0)
+			return true;
+		if (prefix)
+			return length >= query.length && regionMatches(start, query);
+
+		for (int i = start, end = start + length - query.length; i <= end; i++) {
+			if (regionMatches(i, query))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean regionMatches(int offset, char[] chars) {
+		for (int i = 0; i < chars.length; i++) {
+			if (mFolded[offset + i] != chars[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 条目及其所有上级都没有被删除；!showHidden时也都不能是隐藏的
+	 * */
+	private boolean isVisible(int entry, boolean showHidden) {
+		int flags = showHidden ? FLAG_DELETED : FLAG_DELETED | FLAG_HIDDEN;
+		for (int i = entry; i >= 0; i = mParent[i]) {
+			if ((mFlags[i] & flags) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private boolean isUnder(int entry, int ancestor) {
+		for (int i = entry; i >= 0; i = mParent[i]) {
+			if (i == ancestor)
+				return true;
+		}
+		return false;
+	}
+
+	private void markDeleted(int entry) {
+		if ((mFlags[entry] & FLAG_DELETED) == 0) {
+			mFlags[entry] |= FLAG_DELETED;
+			mDeleted++;
+		}
+	}
+
+	/**
+	 * @return path对应的有效条目，不在索引中时返回-1
+	 * */
+	private int resolve(String path) {
+		for (int root : mRoots) {
+			String rootPath = getName(root);
+			if (path.equals(rootPath))
+				return root;
+			if (!path.startsWith(rootPath) || path.length() <= rootPath.length()
+					|| path.charAt(rootPath.length()) != File.separatorChar)
+				continue;
+
+			int entry = root;
+			int start = rootPath.length() + 1;
+			while (entry >= 0 && start < path.length()) {
+				int end = path.indexOf(File.separatorChar, start);
+				if (end < 0)
+					end = path.length();
+				entry = findChild(entry, path.substring(start, end));
+				start = end + 1;
+			}
+			return entry;
+		}
+		return -1;
+	}
+
+	private String getPath(int entry) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = entry; i >= 0; i = mParent[i]) {
+			if (sb.length() > 0)
+				sb.insert(0, File.separatorChar);
+			sb.insert(0, mNames, mNameStart[i], mNameLength[i]);
+		}
+		return sb.toString();
+	}
+
+	private String getName(int entry) {
+		return new String(mNames, mNameStart[entry], mNameLength[entry]);
+	}
+
+	private int addEntry(int parent, String name, boolean isDir) {
+		int entry = appendEntry(parent, name, (isDir ? FLAG_DIR : 0)
+				| (name.startsWith(".") ? FLAG_HIDDEN : 0));
+		mSeen[entry] = mGeneration;
+		insertLookup(entry);
+		if (parent >= 0) {
+			addTrigrams(entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * 只追加列数据，不更新散列表和倒排表
+	 * */
+	private int appendEntry(int parent, String name, int flags) {
+		if (mCount == mParent.length) {
+			int capacity = mCount * 2;
+			mParent = Arrays.copyOf(mParent, capacity);
+			mNameStart = Arrays.copyOf(mNameStart, capacity);
+			mNameLength = Arrays.copyOf(mNameLength, capacity);
+			mFlags = Arrays.copyOf(mFlags, capacity);
+			mSeen = Arrays.copyOf(mSeen, capacity);
+		}
+		int length = name.length();
+		if (mNamesUsed + length > mNames.length) {
+			int capacity = Math.max(mNames.length * 2, mNamesUsed + length);
+			mNames = Arrays.copyOf(mNames, capacity);
+			mFolded = Arrays.copyOf(mFolded, capacity);
+		}
+
+		int entry = mCount++;
+		mParent[entry] = parent;
+		mFlags[entry] = (byte) flags;
+		mNameStart[entry] = mNamesUsed;
+		mNameLength[entry] = length;
+		name.getChars(0, length, mNames, mNamesUsed);
+		for (int i = mNamesUsed; i < mNamesUsed + length; i++) {
+			mFolded[i] = FileSortHelper.fold(mNames[i]);
+		}
+		mNamesUsed += length;
+		return entry;
+	}
+
+	private int findChild(int parent, String name) {
+		int mask = mLookup.length - 1;
+		for (int i = hash(parent, name) & mask;; i = (i + 1) & mask) {
+			int entry = mLookup[i];
+			if (entry < 0)
+				return -1;
+			if (mParent[entry] == parent && (mFlags[entry] & FLAG_DELETED) == 0
+					&& nameEquals(entry, name))
+				return entry;
+		}
+	}
+
+	private boolean nameEquals(int entry, String name) {
+		int length = name.length();
+		if (mNameLength[entry] != length)
+			return false;
+		int start = mNameStart[entry];
+		for (int i = 0; i < length; i++) {
+			if (mNames[start + i] != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void insertLookup(int entry) {
+		if ((mLookupUsed + 1) * 2 > mLookup.length) {
+			rebuildLookup();
+		}
+		int mask = mLookup.length - 1;
+		int i = hash(mParent[entry], mNames, mNameStart[entry],
+				mNameLength[entry]) & mask;
+		while (mLookup[i] >= 0) {
+			i = (i + 1) & mask;
+		}
+		mLookup[i] = entry;
+		mLookupUsed++;
+	}
+
+	/**
+	 * 重建时丢掉已删除的条目
+	 * */
+	private void rebuildLookup() {
+		int live = mCount - mDeleted + 1;
+		int capacity = INITIAL_CAPACITY * 2;
+		while (capacity < live * 4) {
+			capacity *= 2;
+		}
+		mLookup = newTable(capacity);
+		mLookupUsed = 0;
+		for (int i = 0; i < mCount; i++) {
+			if ((mFlags[i] & FLAG_DELETED) == 0) {
+				insertLookup(i);
+			}
+		}
+	}
+
+	private static int hash(int parent, String name) {
+		int h = parent;
+		for (int i = 0; i < name.length(); i++) {
+			h = 31 * h + name.charAt(i);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash(int parent, char[] chars, int start, int length) {
+		int h = parent;
+		for (int i = start; i < start + length; i++) {
+			h = 31 * h + chars[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private void addTrigrams(int entry) {
+		int start = mNameStart[entry];
+		int end = start + mNameLength[entry];
+		for (int i = start; i + 3 <= end; i++) {
+			long key = trigram(mFolded, i);
+			int slot = findTrigram(key);
+			if (slot < 0) {
+				slot = insertTrigram(key);
+			}
+
+			int size = mPostingSizes[slot];
+			int[] postings = mPostings[slot];
+			// 同一个文件名中重复的三元组只记一次
+			if (size > 0 && postings[size - 1] == entry)
+				continue;
+			if (size == postings.length) {
+				postings = mPostings[slot] = Arrays.copyOf(postings, size * 2);
+			}
+			postings[size] = entry;
+			mPostingSizes[slot] = size + 1;
+		}
+	}
+
+	private static long trigram(char[] chars, int offset) {
+		return ((long) chars[offset] << 32) | ((long) chars[offset + 1] << 16)
+				| chars[offset + 2];
+	}
+
+	private int findTrigram(long key) {
+		int mask = mTrigramKeys.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			int slot = mTrigramSlots[i];
+			if (slot < 0)
+				return -1;
+			if (mTrigramKeys[i] == key)
+				return slot;
+		}
+	}
+
+	private int insertTrigram(long key) {
+		if ((mTrigramCount + 1) * 2 > mTrigramKeys.length) {
+			long[] keys = mTrigramKeys;
+			int[] slots = mTrigramSlots;
+			mTrigramKeys = new long[keys.length * 2];
+			mTrigramSlots = newTable(keys.length * 2);
+			for (int i = 0; i < keys.length; i++) {
+				if (slots[i] >= 0)
+					putTrigram(keys[i], slots[i]);
+			}
+		}
+		if (mTrigramCount == mPostings.length) {
+			mPostings = Arrays.copyOf(mPostings, mTrigramCount * 2);
+			mPostingSizes = Arrays.copyOf(mPostingSizes, mTrigramCount * 2);
+		}
+
+		int slot = mTrigramCount++;
+		mPostings[slot] = new int[2];
+		mPostingSizes[slot] = 0;
+		putTrigram(key, slot);
+		return slot;
+	}
+
+	private void putTrigram(long key, int slot) {
+		int mask = mTrigramKeys.length - 1;
+		int i = hash(key) & mask;
+		while (mTrigramSlots[i] >= 0) {
+			i = (i + 1) & mask;
+		}
+		mTrigramKeys[i] = key;
+		mTrigramSlots[i] = slot;
+	}
+
+	private static int hash(long key) {
+		int h = (int) (key ^ (key >>> 29));
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int[] newTable(int capacity) {
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		return table;
+	}
+
+	/**
+	 * 丢掉已删除的条目和它们的子孙，重新编号并重建散列表和倒排表
+	 * */
+	private void compact() {
+		int[] map = new int[mCount];
+		int live = 0;
+		for (int i = 0; i < mCount; i++) {
+			map[i] = isVisible(i, true) ? live++ : -1;
+		}
+
+		int[] parent = mParent;
+		int[] nameStart = mNameStart;
+		int[] nameLength = mNameLength;
+		byte[] flags = mFlags;
+		int[] seen = mSeen;
+		char[] names = mNames;
+		int count = mCount;
+		reset(Math.max(INITIAL_CAPACITY, live));
+		for (int i = 0; i < count; i++) {
+			if (map[i] < 0)
+				continue;
+			int entry = appendEntry(parent[i] >= 0 ? map[parent[i]] : -1,
+					new String(names, nameStart[i], nameLength[i]), flags[i]);
+			mSeen[entry] = seen[i];
+		}
+		rebuildIndexes();
+	}
+
+	private void reset(int capacity) {
+		mCount = 0;
+		mParent = new int[capacity];
+		mNameStart = new int[capacity];
+		mNameLength = new int[capacity];
+		mFlags = new byte[capacity];
+		mSeen = new int[capacity];
+		mNamesUsed = 0;
+		mDeleted = 0;
+	}
+
+	/**
+	 * 由列数据重建散列表、倒排表和根条目
+	 * */
+	private void rebuildIndexes() {
+		mTrigramKeys = new long[INITIAL_CAPACITY * 2];
+		mTrigramSlots = newTable(INITIAL_CAPACITY * 2);
+		mPostings = new int[INITIAL_CAPACITY][];
+		mPostingSizes = new int[INITIAL_CAPACITY];
+		mTrigramCount = 0;
+		mRoots.clear();
+		for (int i = 0; i < mCount; i++) {
+			if (mParent[i] < 0) {
+				mRoots.add(i);
+			} else if ((mFlags[i] & FLAG_DELETED) == 0) {
+				addTrigrams(i);
+			}
+		}
+		rebuildLookup();
+	}
+
+	/**
+	 * 磁盘上只保存条目（父条目、标志、文件名），散列表和倒排表加载时重建
+	 * */
+	private void load(File store) {
+		if (!store.exists())
+			return;
+
+		long start = System.currentTimeMillis();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(store), 64 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return;
+
+			int count = in.readInt();
+			int[] parents = new int[count];
+			byte[] flags = new byte[count];
+			String[] names = new String[count];
+			for (int i = 0; i < count; i++) {
+				parents[i] = in.readInt();
+				flags[i] = in.readByte();
+				names[i] = in.readUTF();
+			}
+
+			synchronized (this) {
+				// 加载之前已经有增量更新时，以遍历结果为准
+				if (mCount > 0)
+					return;
+				reset(Math.max(INITIAL_CAPACITY, count));
+				for (int i = 0; i < count; i++) {
+					appendEntry(parents[i], names[i], flags[i]);
+					if ((flags[i] & FLAG_DELETED) != 0)
+						mDeleted++;
+				}
+				rebuildIndexes();
+			}
+			Log.v(LOG_TAG, "load >>> entries: " + count + ", "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "load: " + e.toString());
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * 锁内只复制列数据，锁外去掉已删除的条目并写文件，不阻塞UI线程上的增量更新
+	 * 先写临时文件再改名，中途失败不会留下不完整的索引
+	 * */
+	private void save(File store) {
+		int count;
+		int[] parents;
+		byte[] flags;
+		int[] nameStart;
+		int[] nameLength;
+		char[] names;
+		synchronized (this) {
+			// 删除的条目很多时顺便整理内存中的索引，只是内存操作
+			if (mDeleted > mCount / 4 && mTreeWalks == 0) {
+				compact();
+			}
+			count = mCount;
+			parents = Arrays.copyOf(mParent, count);
+			flags = Arrays.copyOf(mFlags, count);
+			nameStart = Arrays.copyOf(mNameStart, count);
+			nameLength = Arrays.copyOf(mNameLength, count);
+			names = Arrays.copyOf(mNames, mNamesUsed);
+		}
+
+		// 已删除的条目和它们的子孙不写出，其余的重新编号
+		int[] map = new int[count];
+		int live = 0;
+		for (int i = 0; i < count; i++) {
+			boolean visible = true;
+			for (int j = i; j >= 0; j = parents[j]) {
+				if ((flags[j] & FLAG_DELETED) != 0) {
+					visible = false;
+					break;
+				}
+			}
+			map[i] = visible ? live++ : -1;
+		}
+
+		synchronized (mSaveLock) {
+			File tmp = new File(store.getPath() + ".tmp");
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(tmp), 64 * 1024));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(live);
+				for (int i = 0; i < count; i++) {
+					if (map[i] < 0)
+						continue;
+					out.writeInt(parents[i] >= 0 ? map[parents[i]] : -1);
+					out.writeByte(flags[i]);
+					out.writeUTF(new String(names, nameStart[i], nameLength[i]));
+				}
+				out.close();
+				out = null;
+				if (!tmp.renameTo(store)) {
+					Log.e(LOG_TAG, "save: fail to rename " + tmp);
+					tmp.delete();
+				}
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "save: " + e.toString());
+				tmp.delete();
+			} finally {
+				closeQuietly(out);
+			}
+		}
+		Log.v(LOG_TAG, "save >>> entries: " + live);
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "close: " + e.toString());
+		}
+	}
+}
@@ -25,7 +25,7 @@ import java.util.HashMap;
 public class FileSortHelper {
 
     public enum SortMethod {
-        name, size, date, type
+        name, size, date, type, natural
     }
 
     private SortMethod mSort;
@@ -40,6 +40,7 @@ public class FileSortHelper {
         mComparatorList.put(SortMethod.size, cmpSize);
         mComparatorList.put(SortMethod.date, cmpDate);
         mComparatorList.put(SortMethod.type, cmpType);
+        mComparatorList.put(SortMethod.natural, cmpNatural);
     }
 
     public void setSortMethog(SortMethod s) {
@@ -54,6 +55,10 @@ public class FileSortHelper {
         mFileFirst = f;
     }
 
+    public boolean isFileFirst() {
+        return mFileFirst;
+    }
+
     public Comparator getComparator() {
         return mComparatorList.get(mSort);
     }
@@ -106,13 +111,134 @@ public class FileSortHelper {
     private Comparator cmpType = new FileComparator() {
         @Override
         public int doCompare(FileInfo object1, FileInfo object2) {
-            int result = Util.getExtFromFilename(object1.fileName).compareToIgnoreCase(
-                    Util.getExtFromFilename(object2.fileName));
+            String name1 = object1.fileName;
+            String name2 = object2.fileName;
+            int dot1 = name1.lastIndexOf('.');
+            int dot2 = name2.lastIndexOf('.');
+            // 扩展名，没有'.'时为空；比较时不截取子串
+            int result = compareIgnoreCase(name1, dot1 + 1, dot1 < 0 ? 0 : name1.length(),
+                    name2, dot2 + 1, dot2 < 0 ? 0 : name2.length());
             if (result != 0)
                 return result;
 
-            return Util.getNameFromFilename(object1.fileName).compareToIgnoreCase(
-                    Util.getNameFromFilename(object2.fileName));
+            // 去掉扩展名的部分，没有'.'时为空，与Util.getNameFromFilename一致
+            return compareIgnoreCase(name1, 0, Math.max(dot1, 0), name2, 0, Math.max(dot2, 0));
+        }
+    };
+
+    /**
+     * 数字按数值比较：IMG_2排在IMG_10前面。目录列表由FileListing用预先折叠好的键排序，
+     * 这个比较器只用于零散的FileInfo
+     */
+    private Comparator cmpNatural = new FileComparator() {
+        @Override
+        public int doCompare(FileInfo object1, FileInfo object2) {
+            char[] name1 = foldCase(object1.fileName);
+            char[] name2 = foldCase(object2.fileName);
+            return compareNatural(name1, 0, name1.length, name2, 0, name2.length);
         }
     };
+
+    private static int compareIgnoreCase(String s1, int start1, int end1, String s2, int start2,
+            int end2) {
+        int length1 = Math.max(end1 - start1, 0);
+        int length2 = Math.max(end2 - start2, 0);
+        int n = Math.min(length1, length2);
+        for (int i = 0; i < n; i++) {
+            char c1 = fold(s1.charAt(start1 + i));
+            char c2 = fold(s2.charAt(start2 + i));
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return length1 - length2;
+    }
+
+    /**
+     * 大小写折叠：折叠后的字符直接比较，结果与String.compareToIgnoreCase相同
+     */
+    public static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    public static char[] foldCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(chars[i]);
+        }
+        return chars;
+    }
+
+    /**
+     * 比较两段已经折叠过的字符
+     */
+    public static int compareFolded(char[] a, int startA, int endA, char[] b, int startB,
+            int endB) {
+        int lengthA = endA - startA;
+        int lengthB = endB - startB;
+        int n = Math.min(lengthA, lengthB);
+        for (int i = 0; i < n; i++) {
+            char c1 = a[startA + i];
+            char c2 = b[startB + i];
+            if (c1 != c2)
+                return c1 - c2;
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * 自然顺序比较两段已经折叠过的字符：连续的ASCII数字按数值比较，
+     * 数值相同时前导零少的在前
+     */
+    public static int compareNatural(char[] a, int startA, int endA, char[] b, int startB,
+            int endB) {
+        int i = startA;
+        int j = startB;
+        int tie = 0;
+        while (i < endA && j < endB) {
+            char c1 = a[i];
+            char c2 = b[j];
+            if (isDigit(c1) && isDigit(c2)) {
+                // 跳过前导零
+                int start1 = i;
+                while (start1 < endA && a[start1] == '0')
+                    start1++;
+                int start2 = j;
+                while (start2 < endB && b[start2] == '0')
+                    start2++;
+                int end1 = start1;
+                while (end1 < endA && isDigit(a[end1]))
+                    end1++;
+                int end2 = start2;
+                while (end2 < endB && isDigit(b[end2]))
+                    end2++;
+
+                // 有效位数多的数值大
+                int digits1 = end1 - start1;
+                int digits2 = end2 - start2;
+                if (digits1 != digits2)
+                    return digits1 - digits2;
+                for (int k = 0; k < digits1; k++) {
+                    if (a[start1 + k] != b[start2 + k])
+                        return a[start1 + k] - b[start2 + k];
+                }
+                if (tie == 0)
+                    tie = (end1 - i) - (end2 - j);
+                i = end1;
+                j = end2;
+                continue;
+            }
+
+            if (c1 != c2)
+                return c1 - c2;
+            i++;
+            j++;
+        }
+
+        int rest = (endA - i) - (endB - j);
+        return rest != 0 ? rest : tie;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
 }
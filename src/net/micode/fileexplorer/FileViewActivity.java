@@ -20,9 +20,11 @@
 package net.micode.fileexplorer;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import android.app.Activity;
 import android.app.Fragment;
@@ -47,7 +49,8 @@ import net.micode.fileexplorer.FileExplorerTabActivity.IBackPressedListener;
 import net.micode.fileexplorer.FileViewInteractionHub.Mode;
 
 public class FileViewActivity extends Fragment implements
-		IFileInteractionListener, IBackPressedListener {
+		IFileInteractionListener, IBackPressedListener,
+		DirectoryLoader.Listener, DirectoryWatcher.Listener {
 
 	public static final String EXT_FILTER_KEY = "ext_filter";
 
@@ -77,9 +80,14 @@ public class FileViewActivity extends Fragment implements
 	private FileIconHelper mFileIconHelper;
 
 	/**
-	 * 当前文件列表的FileInfo信息
+	 * 目录中文件数的后台计算
 	 * */
-	private ArrayList<FileInfo> mFileNameList = new ArrayList<FileInfo>();
+	private DirectoryCountLoader mCountLoader = new DirectoryCountLoader();
+
+	/**
+	 * 当前文件列表的FileInfo信息，按列存储，行在显示时才生成
+	 * */
+	private FileListing mFileNameList = new FileListing();
 
 	private Activity mActivity;
 
@@ -91,6 +99,41 @@ public class FileViewActivity extends Fragment implements
 	private ArrayList<PathScrollPositionItem> mScrollPositionList = new ArrayList<PathScrollPositionItem>();
 	private String mPreviousPath; // 当前路径
 
+	/**
+	 * 正在加载的目录，切换目录时取消
+	 * */
+	private DirectoryLoader mLoader;
+
+	private FileSortHelper mLoaderSort;
+
+	/**
+	 * 加载完成后要恢复的滚动位置，-1表示已经恢复
+	 * */
+	private int mPendingScrollPos = -1;
+
+	/**
+	 * 监视当前目录，外部的变化以补丁的方式应用到列表，不重新加载；
+	 * 回调直接在监视线程中执行，stat之后再转到UI线程
+	 * */
+	private DirectoryWatcher mWatcher = new DirectoryWatcher(
+			new FileObserverBackend(), new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					command.run();
+				}
+			}, this);
+
+	private FilenameFilter mLoaderFilter;
+
+	/**
+	 * 加载进行中收到的变化，列表还不完整，加载完成后再应用
+	 * */
+	private ArrayList<String> mPendingNames = new ArrayList<String>();
+
+	private ArrayList<FileInfo> mPendingInfos = new ArrayList<FileInfo>();
+
+	private boolean mPendingRefresh;
+
 	/**
 	 * 职责：接收SD卡插拔的系统广播，并且在主线程中更新UI
 	 * */
@@ -138,6 +181,12 @@ public class FileViewActivity extends Fragment implements
 				ActivitiesManager.ACTIVITY_FILE_VIEW, mActivity);
 
 		mFileCagetoryHelper = new FileCategoryHelper(mActivity);
+		DirectorySnapshotCache.getInstance().setDiskStore(
+				new File(mActivity.getCacheDir(), "dir_snapshots"));
+		FileSearchIndex.getInstance().start(
+				new File(mActivity.getCacheDir(), "search_index"), sdDir);
+		TreeSizeService.getInstance().setDiskStore(
+				new File(mActivity.getCacheDir(), "tree_sizes"));
 		mFileViewInteractionHub = new FileViewInteractionHub(this);
 		Intent intent = mActivity.getIntent();
 		String action = intent.getAction();
@@ -196,7 +245,8 @@ public class FileViewActivity extends Fragment implements
 		mFileListView = (ListView) mRootView.findViewById(R.id.file_path_list);
 		mFileIconHelper = new FileIconHelper(mActivity);
 		mAdapter = new FileListAdapter(mActivity, R.layout.file_browser_item,
-				mFileNameList, mFileViewInteractionHub, mFileIconHelper);
+				mFileNameList, mFileViewInteractionHub, mFileIconHelper,
+				mCountLoader);
 
 		// 是否基于sd卡 TODO 目前还不清楚这里到底是怎么处理的
 		boolean baseSd = intent.getBooleanExtra(GlobalConsts.KEY_BASE_SD,
@@ -237,6 +287,14 @@ public class FileViewActivity extends Fragment implements
 						.equals(Intent.ACTION_GET_CONTENT)));
 
 		mFileListView.setAdapter(mAdapter);
+		mFileListView.setOnScrollListener(new IconScrollController(
+				mFileIconHelper, new IconScrollController.FileSource() {
+					@Override
+					public FileInfo getFileInfo(int position) {
+						return position < mFileNameList.size() ? mFileNameList
+								.get(position) : null;
+					}
+				}));
 		mFileViewInteractionHub.refreshFileList();
 
 		// 注册sd卡挂载广播
@@ -251,9 +309,18 @@ public class FileViewActivity extends Fragment implements
 		return mRootView;
 	}
 
+	@Override
+	public void onPause() {
+		super.onPause();
+		mFileIconHelper.flushDiskCache();
+	}
+
 	@Override
 	public void onDestroyView() {
 		super.onDestroyView();
+		cancelLoader();
+		mWatcher.stop();
+		mCountLoader.stop();
 		mActivity.unregisterReceiver(mReceiver);
 	}
 
@@ -341,9 +408,10 @@ public class FileViewActivity extends Fragment implements
 
 	/**
 	 * 作用：刷新文件列表信息 
-	 * 1.找出符合显示条件的FileInfo 
-	 * 2.如果FileInfo为空时显示空View 
-	 * 3.为ListView选中pos
+	 * 1.取消上一次还没有完成的加载，清空列表
+	 * 2.在后台线程中加载符合显示条件的FileInfo，分批追加到列表
+	 * 3.加载完成时，如果FileInfo为空显示空View
+	 * 4.为ListView选中pos
 	 * */
 	public boolean onRefreshFileList(String path, FileSortHelper sort) {
 		// file必须是目录文件
@@ -352,38 +420,167 @@ public class FileViewActivity extends Fragment implements
 			return false;
 		}
 		// TODO 计算出新的pos
-		final int pos = computeScrollPosition(path);
-		// fileList指向mFileNameList
-		ArrayList<FileInfo> fileList = mFileNameList;
-		fileList.clear();
-		// 得到过滤后的File数组
-		File[] listFiles = file.listFiles(mFileCagetoryHelper.getFilter());
-		if (listFiles == null)
-			return true;
-
-		for (File child : listFiles) {
-			// do not show selected file if in move state
-			if (mFileViewInteractionHub.isMoveState()
-					&& mFileViewInteractionHub.isFileSelected(child.getPath()))
-				continue;
-
-			String absolutePath = child.getAbsolutePath();
-			// 判断File是否Normal并且可以被显示（非隐藏）
-			if (Util.isNormalFile(absolutePath)
-					&& Util.shouldShowFile(absolutePath)) {
-				FileInfo lFileInfo = Util.GetFileInfo(child,
-						mFileCagetoryHelper.getFilter(), Settings.instance()
-								.getShowDotAndHiddenFiles());
-				if (lFileInfo != null) {
-					fileList.add(lFileInfo);
+		mPendingScrollPos = computeScrollPosition(path);
+
+		cancelLoader();
+		mFileNameList.clear();
+		onDataChanged();
+		showEmptyView(false);
+		// 先开始监视再列目录，加载期间的变化不会丢失
+		mWatcher.watch(path);
+		// 与列目录并行地查询图片、视频的媒体库id
+		MediaIdResolver.getInstance(mActivity).prefetch(path);
+		mPendingNames.clear();
+		mPendingInfos.clear();
+		mPendingRefresh = false;
+
+		FilenameFilter filter = mFileCagetoryHelper.getFilter();
+		boolean showHidden = Settings.instance().getShowDotAndHiddenFiles();
+		mCountLoader.setFilter(filter, showHidden);
+		mLoaderSort = sort;
+		mLoaderFilter = filter;
+		mLoader = new DirectoryLoader(path, filter, showHidden,
+				mFileViewInteractionHub.isMoveState() ? mFileViewInteractionHub
+						: null, this).start();
+		return true;
+	}
+
+	private void cancelLoader() {
+		if (mLoader != null) {
+			mLoader.cancel(false);
+			mLoader = null;
+		}
+	}
+
+	@Override
+	public void onBatchLoaded(DirectoryLoader loader, ArrayList<FileInfo> batch) {
+		// 过期的加载
+		if (loader != mLoader)
+			return;
+
+		// 只排序这一批再归并进来，不在UI线程上反复排序整个列表
+		mFileNameList.addAllSorted(batch, mLoaderSort);
+		onDataChanged();
+		restoreScrollPosition(false);
+	}
+
+	@Override
+	public void onLoadFinished(DirectoryLoader loader, boolean success) {
+		if (loader != mLoader)
+			return;
+
+		mLoader = null;
+		if (mPendingRefresh) {
+			mPendingRefresh = false;
+			mFileViewInteractionHub.refreshFileList();
+			return;
+		}
+		if (!mPendingNames.isEmpty()) {
+			applyChanges(mPendingNames, mPendingInfos);
+			mPendingNames.clear();
+			mPendingInfos.clear();
+		}
+		// 当没有文件信息时，显示空的View
+		showEmptyView(mFileNameList.size() == 0);
+		restoreScrollPosition(true);
+	}
+
+	/**
+	 * 在监视线程中调用：取得变化的文件的最新状态，再在UI线程中修改列表
+	 * */
+	@Override
+	public void onDirectoryChanged(final String dir,
+			final ArrayList<String> names) {
+		// 监视溢出或目录本身变化时才重新列出整个目录
+		if (names == null) {
+			FileSearchIndex.getInstance().syncDirectory(dir);
+		} else {
+			FileSearchIndex.getInstance().syncChildren(dir, names);
+		}
+		MediaIdResolver.getInstance(mActivity).invalidate(dir);
+		final ArrayList<FileInfo> infos = names != null ? new ArrayList<FileInfo>(
+				names.size()) : null;
+		if (names != null) {
+			for (String name : names) {
+				File child = new File(dir, name);
+				String absolutePath = child.getAbsolutePath();
+				FileInfo info = null;
+				if (child.exists() && Util.isNormalFile(absolutePath)
+						&& Util.shouldShowFile(absolutePath)) {
+					info = Util.GetFileInfo(child, null, false);
 				}
+				// null表示该文件已不存在或不应显示
+				infos.add(info);
 			}
 		}
 
-		sortCurrentList(sort);
+		mActivity.runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				// 已经离开这个目录
+				if (!dir.equals(mFileViewInteractionHub.getCurrentPath()))
+					return;
+
+				DirectorySnapshotCache.getInstance().invalidate(dir);
+				if (mLoader != null) {
+					if (names == null) {
+						mPendingRefresh = true;
+					} else {
+						mPendingNames.addAll(names);
+						mPendingInfos.addAll(infos);
+					}
+					return;
+				}
 
-		// 当没有文件信息时，显示空的View
-		showEmptyView(fileList.size() == 0);
+				if (names == null) {
+					mFileViewInteractionHub.refreshFileList();
+					return;
+				}
+				applyChanges(names, infos);
+				showEmptyView(mFileNameList.size() == 0);
+				onDataChanged();
+			}
+		});
+	}
+
+	/**
+	 * 逐个文件修改列表：不存在的移除，已有的更新，新出现的按排序插入
+	 * */
+	private void applyChanges(ArrayList<String> names, ArrayList<FileInfo> infos) {
+		boolean moveState = mFileViewInteractionHub.isMoveState();
+		File dir = new File(mFileViewInteractionHub.getCurrentPath());
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			FileInfo info = infos.get(i);
+			if (info != null
+					&& ((mLoaderFilter != null && !mLoaderFilter.accept(dir, name))
+					// do not show selected file if in move state
+					|| (moveState && mFileViewInteractionHub
+							.isFileSelected(info.filePath)))) {
+				info = null;
+			}
+
+			int position = mFileNameList.indexOfName(name);
+			if (info == null) {
+				if (position >= 0)
+					mFileNameList.remove(position);
+			} else if (position >= 0) {
+				mFileNameList.update(position, info);
+			} else {
+				mFileNameList.insert(info);
+			}
+		}
+	}
+
+	/**
+	 * 列表长度足够或加载结束时，为mFileListView选中之前记住的pos
+	 * */
+	private void restoreScrollPosition(boolean finished) {
+		final int pos = mPendingScrollPos;
+		if (pos < 0 || (!finished && mFileNameList.size() <= pos))
+			return;
+
+		mPendingScrollPos = -1;
 		// 在UI线程中为mFileListView选中pos
 		mFileListView.post(new Runnable() {
 			@Override
@@ -391,7 +588,6 @@ public class FileViewActivity extends Fragment implements
 				mFileListView.setSelection(pos);
 			}
 		});
-		return true;
 	}
 
 	/**
@@ -544,22 +740,31 @@ public class FileViewActivity extends Fragment implements
 		return mFileNameList.get(pos);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void sortCurrentList(FileSortHelper sort) {
-		Collections.sort(mFileNameList, sort.getComparator());
+		mFileNameList.sort(sort);
 		onDataChanged();
 	}
 
 	@Override
-	public ArrayList<FileInfo> getAllFiles() {
+	public Collection<FileInfo> getAllFiles() {
 		return mFileNameList;
 	}
 
 	@Override
-	public void addSingleFile(FileInfo file) {
-		mFileNameList.add(file);
+	public int addSingleFile(FileInfo file) {
+		// 二分查找插入，不必重新排序
+		int position = mFileNameList.insert(file);
+		showEmptyView(false);
+		onDataChanged();
+		return position;
+	}
+
+	@Override
+	public int renameSingleFile(FileInfo file, String newPath) {
+		int position = mFileNameList.rename(file, newPath);
 		onDataChanged();
+		return position;
 	}
 
 	@Override
@@ -23,6 +23,7 @@ import java.io.File;
 import java.util.ArrayList;
 
 import android.R.drawable;
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
@@ -91,6 +92,11 @@ public class FileViewInteractionHub implements IOperationProgressListener {
 
     private ProgressDialog progressDialog;
 
+    /**
+     * 进度对话框的基本提示，进度信息附加在其后
+     * */
+    private String mProgressMessage;
+
     private View mNavigationBar;
 
     private TextView mNavigationBarText;
@@ -118,11 +124,34 @@ public class FileViewInteractionHub implements IOperationProgressListener {
     }
 
     private void showProgress(String msg) {
+        showProgress(msg, false);
+    }
+
+    /**
+     * cancelable为true时对话框带取消按钮，取消的是FileOperationHelper中正在进行的操作
+     * */
+    private void showProgress(String msg, boolean cancelable) {
+        mProgressMessage = msg;
         progressDialog = new ProgressDialog(mContext);
         // dialog.setIcon(R.drawable.icon);
         progressDialog.setMessage(msg);
         progressDialog.setIndeterminate(true);
-        progressDialog.setCancelable(false);
+        progressDialog.setCancelable(cancelable);
+        if (cancelable) {
+            progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, mContext.getString(R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            mFileOperationHelper.cancel();
+                        }
+                    });
+            progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    mFileOperationHelper.cancel();
+                }
+            });
+        }
         progressDialog.show();
     }
 
@@ -161,14 +190,13 @@ public class FileViewInteractionHub implements IOperationProgressListener {
     // operation finish notification
     @Override
     public void onFinish() {
-        if (progressDialog != null) {
-            progressDialog.dismiss();
-            progressDialog = null;
-        }
-
         mFileViewListener.runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                if (progressDialog != null) {
+                    progressDialog.dismiss();
+                    progressDialog = null;
+                }
                 showConfirmOperationBar(false);
                 clearSelection();
                 refreshFileList();
@@ -435,8 +463,11 @@ public class FileViewInteractionHub implements IOperationProgressListener {
             return false;
 
         if (mFileOperationHelper.CreateFolder(mCurrentPath, text)) {
-            mFileViewListener.addSingleFile(Util.GetFileInfo(Util.makePath(mCurrentPath, text)));
-            mFileListView.setSelection(mFileListView.getCount() - 1);
+            FileInfo folder = Util.GetFileInfo(Util.makePath(mCurrentPath, text));
+            if (folder != null) {
+                int pos = mFileViewListener.addSingleFile(folder);
+                mFileListView.setSelection(pos >= 0 ? pos : mFileListView.getCount() - 1);
+            }
         } else {
             new AlertDialog.Builder(mContext).setMessage(mContext.getString(R.string.fail_to_create_folder))
                     .setPositiveButton(R.string.confirm, null).create().show();
@@ -446,8 +477,11 @@ public class FileViewInteractionHub implements IOperationProgressListener {
         return true;
     }
 
+    /**
+     * 弹出系统搜索框，查询由SearchActivity通过FileSearchIndex完成
+     */
     public void onOperationSearch() {
-
+        ((Activity) mContext).onSearchRequested();
     }
 
     public void onSortChanged(SortMethod s) {
@@ -487,7 +521,7 @@ public class FileViewInteractionHub implements IOperationProgressListener {
 
     private void onOperationPaste() {
         if (mFileOperationHelper.Paste(mCurrentPath)) {
-            showProgress(mContext.getString(R.string.operation_pasting));
+            showProgress(mContext.getString(R.string.operation_pasting), true);
         }
     }
 
@@ -604,8 +638,9 @@ public class FileViewInteractionHub implements IOperationProgressListener {
             return false;
 
         if (mFileOperationHelper.Rename(f, text)) {
-            f.fileName = text;
-            mFileViewListener.onDataChanged();
+            // 只移动这一项到新的位置，不重新排序整个列表
+            mFileViewListener.renameSingleFile(f,
+                    Util.makePath(Util.getPathFromFilepath(f.filePath), text));
         } else {
             new AlertDialog.Builder(mContext).setMessage(mContext.getString(R.string.fail_to_rename))
                     .setPositiveButton(R.string.confirm, null).create().show();
@@ -696,7 +731,7 @@ public class FileViewInteractionHub implements IOperationProgressListener {
             clearSelection();
         } else if (mFileOperationHelper.isMoveState()) {
             if (mFileOperationHelper.EndMove(mCurrentPath)) {
-                showProgress(mContext.getString(R.string.operation_moving));
+                showProgress(mContext.getString(R.string.operation_moving), true);
             }
         } else {
             onOperationPaste();
@@ -808,6 +843,8 @@ public class FileViewInteractionHub implements IOperationProgressListener {
 
     private static final int MENU_EXIT = 18;
 
+    private static final int MENU_SORT_NATURAL = 19;
+
     private OnMenuItemClickListener menuItemClick = new OnMenuItemClickListener() {
 
         @Override
@@ -864,6 +901,10 @@ public class FileViewInteractionHub implements IOperationProgressListener {
                     item.setChecked(true);
                     onSortChanged(SortMethod.type);
                     break;
+                case MENU_SORT_NATURAL:
+                    item.setChecked(true);
+                    onSortChanged(SortMethod.natural);
+                    break;
 
                 case GlobalConsts.MENU_COPY:
                     onOperationCopy();
@@ -911,9 +952,8 @@ public class FileViewInteractionHub implements IOperationProgressListener {
         clearSelection();
         showDropdownNavigation(false);
 
-        // menu.add(0, MENU_SEARCH, 0,
-        // R.string.menu_item_search).setOnMenuItemClickListener(
-        // menuItemClick);
+        addMenuItem(menu, MENU_SEARCH, 0, R.string.menu_item_search,
+                drawable.ic_menu_search);
         addMenuItem(menu, MENU_SELECTALL, 0, R.string.operation_selectall,
                 R.drawable.ic_menu_select_all);
 
@@ -923,6 +963,7 @@ public class FileViewInteractionHub implements IOperationProgressListener {
         addMenuItem(sortMenu, MENU_SORT_SIZE, 1, R.string.menu_item_sort_size);
         addMenuItem(sortMenu, MENU_SORT_DATE, 2, R.string.menu_item_sort_date);
         addMenuItem(sortMenu, MENU_SORT_TYPE, 3, R.string.menu_item_sort_type);
+        addMenuItem(sortMenu, MENU_SORT_NATURAL, 4, R.string.menu_item_sort_natural);
         sortMenu.setGroupCheckable(0, true, true);
         sortMenu.getItem(0).setChecked(true);
 
@@ -1151,6 +1192,31 @@ public class FileViewInteractionHub implements IOperationProgressListener {
         notifyFileSystemChanged(path);
     }
 
+    @Override
+    public void onProgress(final int filesDone, final int filesTotal, final long bytesDone) {
+        mFileViewListener.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (progressDialog != null) {
+                    progressDialog.setMessage(mProgressMessage + "\n" + filesDone + "/" + filesTotal
+                            + "  " + Util.convertStorage(bytesDone));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onMoveSourcesLeft(final int count) {
+        mFileViewListener.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext,
+                        mContext.getString(R.string.move_sources_left, count),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     public void startSelectFiles(SelectFilesCallback callback) {
         mSelectFilesCallback = callback;
         showConfirmOperationBar(true);
@@ -75,7 +75,17 @@ public interface IFileInteractionListener {
 
     public Collection<FileInfo> getAllFiles();
 
-    public void addSingleFile(FileInfo file);
+    /**
+     * 作用：把一个新文件加入当前列表
+     * @return 新文件所在的位置，不知道位置时返回-1
+     * */
+    public int addSingleFile(FileInfo file);
+
+    /**
+     * 作用：列表中的file已经被改名为newPath，更新它在列表中的内容和位置
+     * @return 改名后所在的位置，不知道位置时返回-1
+     * */
+    public int renameSingleFile(FileInfo file, String newPath);
 
     public boolean onRefreshFileList(String path, FileSortHelper sort);
 
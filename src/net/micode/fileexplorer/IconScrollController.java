@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+/**
+ * 职责：根据列表的滑动状态控制图标加载
+ * 快速滑动（fling）时暂停，经过的行不再解码；停下来后只加载可见的行，
+ * 再按滑动方向预加载前后若干行
+ * */
+public class IconScrollController implements AbsListView.OnScrollListener {
+	/**
+	 * 滑动方向前方预加载的行数
+	 * */
+	private static final int PREFETCH_AHEAD = 10;
+
+	/**
+	 * 滑动方向后方预加载的行数
+	 * */
+	private static final int PREFETCH_BEHIND = 4;
+
+	/**
+	 * 接口
+	 * 职责：按列表中的位置取得FileInfo，不存在时返回null
+	 * */
+	public interface FileSource {
+		FileInfo getFileInfo(int position);
+	}
+
+	private final FileIconHelper mIconHelper;
+
+	private final FileSource mSource;
+
+	private int mFirstVisible;
+
+	private int mVisibleCount;
+
+	private int mTotalCount;
+
+	private boolean mScrollingUp;
+
+	private boolean mPaused;
+
+	public IconScrollController(FileIconHelper iconHelper, FileSource source) {
+		mIconHelper = iconHelper;
+		mSource = source;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		if (scrollState == SCROLL_STATE_FLING) {
+			if (!mPaused) {
+				mPaused = true;
+				mIconHelper.pause();
+			}
+			return;
+		}
+
+		// 先取消暂停，否则暂停中的加载器会丢弃预加载请求
+		boolean wasPaused = mPaused;
+		if (wasPaused) {
+			mPaused = false;
+			mIconHelper.unpause();
+		}
+		if (scrollState == SCROLL_STATE_IDLE) {
+			int headers = view instanceof ListView ? ((ListView) view)
+					.getHeaderViewsCount() : 0;
+			prefetch(mFirstVisible - headers);
+		}
+		if (wasPaused) {
+			// 在预加载之后提交：任务后进先出，可见的行先加载
+			mIconHelper.resubmitPending();
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem,
+			int visibleItemCount, int totalItemCount) {
+		if (firstVisibleItem != mFirstVisible) {
+			mScrollingUp = firstVisibleItem < mFirstVisible;
+		}
+		mFirstVisible = firstVisibleItem;
+		mVisibleCount = visibleItemCount;
+		mTotalCount = totalItemCount;
+	}
+
+	/**
+	 * 任务后进先出：先提交反方向的，再从远到近提交滑动方向上的，近处的先加载
+	 * */
+	private void prefetch(int first) {
+		int last = first + mVisibleCount - 1;
+		if (mScrollingUp) {
+			preloadBelow(last, PREFETCH_BEHIND);
+			preloadAbove(first, PREFETCH_AHEAD);
+		} else {
+			preloadAbove(first, PREFETCH_BEHIND);
+			preloadBelow(last, PREFETCH_AHEAD);
+		}
+	}
+
+	private void preloadBelow(int last, int count) {
+		for (int i = Math.min(mTotalCount - 1, last + count); i > last; i--) {
+			preload(i);
+		}
+	}
+
+	private void preloadAbove(int first, int count) {
+		for (int i = Math.max(0, first - count); i < first; i++) {
+			preload(i);
+		}
+	}
+
+	private void preload(int position) {
+		FileInfo info = mSource.getFileInfo(position);
+		if (info != null && !info.IsDir) {
+			mIconHelper.preload(info);
+		}
+	}
+}
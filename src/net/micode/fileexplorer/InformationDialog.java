@@ -19,20 +19,14 @@
 
 package net.micode.fileexplorer;
 
-import java.io.File;
-
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.view.View;
 import android.widget.TextView;
 
 public class InformationDialog extends AlertDialog {
-    protected static final int ID_USER = 100;
     private FileInfo mFileInfo;
     private FileIconHelper mFileIconHelper;
     private Context mContext;
@@ -75,65 +69,39 @@ public class InformationDialog extends AlertDialog {
         super.onCreate(savedInstanceState);
     }
 
-    private Handler mHandler = new Handler() {
-
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case ID_USER:
-                    Bundle data = msg.getData();
-                    long size = data.getLong("SIZE");
-                    ((TextView) mView.findViewById(R.id.information_size)).setText(formatFileSizeString(size));
-            }
-        };
-    };
+    private TreeSizeService.Request mSizeRequest;
 
-    private AsyncTask task;
-
-    @SuppressWarnings("unchecked")
+    /**
+     * 目录大小由TreeSizeService在后台计算，进度按固定频率刷新
+     */
     private void asyncGetSize() {
-        task = new AsyncTask() {
-            private long size;
-
-            @Override
-            protected Object doInBackground(Object... params) {
-                String path = (String) params[0];
-                size = 0;
-                getSize(path);
-                task = null;
-                return null;
-            }
-
-            private void getSize(String path) {
-                if (isCancelled())
-                    return;
-                File file = new File(path);
-                if (file.isDirectory()) {
-                    File[] listFiles = file.listFiles();
-                    if (listFiles == null)
-                        return;
-
-                    for (File f : listFiles) {
-                        if (isCancelled())
-                            return;
-
-                        getSize(f.getPath());
+        mSizeRequest = TreeSizeService.getInstance().compute(mFileInfo.filePath,
+                new TreeSizeService.Listener() {
+                    @Override
+                    public void onProgress(long size, int fileCount) {
+                        setSize(size);
                     }
-                } else {
-                    size += file.length();
-                    onSize(size);
-                }
-            }
 
-        }.execute(mFileInfo.filePath);
+                    @Override
+                    public void onFinish(TreeSizeService.Node root) {
+                        mSizeRequest = null;
+                        setSize(root.totalSize);
+                    }
+                });
     }
 
-    private void onSize(final long size) {
-        Message msg = new Message();
-        msg.what = ID_USER;
-        Bundle bd = new Bundle();
-        bd.putLong("SIZE", size);
-        msg.setData(bd);
-        mHandler.sendMessage(msg); // 向Handler发送消息,更新UI
+    private void setSize(long size) {
+        ((TextView) mView.findViewById(R.id.information_size)).setText(formatFileSizeString(size));
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // 对话框关闭时停止计算
+        if (mSizeRequest != null) {
+            mSizeRequest.cancel();
+            mSizeRequest = null;
+        }
     }
 
     private String formatFileSizeString(long size) {
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore.Files;
+import android.provider.MediaStore.Files.FileColumns;
+import android.util.Log;
+
+/**
+ * 职责：按目录批量查询图片、视频在MediaStore中的id
+ * 一个目录只查询一次（_data以目录开头且不在子目录中），结果按目录缓存；
+ * 目录内容变化后由invalidate作废
+ * */
+public class MediaIdResolver {
+	private static final String LOG_TAG = "MediaIdResolver";
+
+	private static final String VOLUME_NAME = "external";
+
+	/**
+	 * 最多缓存的目录数
+	 * */
+	private static final int MAX_DIRECTORIES = 32;
+
+	private static final long KEEP_ALIVE_SECONDS = 10;
+
+	private static final String SELECTION = FileColumns.DATA
+			+ " LIKE ? ESCAPE '\\' AND " + FileColumns.DATA
+			+ " NOT LIKE ? ESCAPE '\\' AND " + FileColumns.MEDIA_TYPE
+			+ " IN (" + FileColumns.MEDIA_TYPE_IMAGE + ","
+			+ FileColumns.MEDIA_TYPE_VIDEO + ")";
+
+	private static final String[] COLUMNS = new String[] { FileColumns._ID,
+			FileColumns.DATA, FileColumns.MEDIA_TYPE };
+
+	/**
+	 * 一个目录下的文件名到id的映射；resolved之前由第一个使用者查询，其他使用者等待
+	 * */
+	private static class DirIds {
+		final HashMap<String, Long> images = new HashMap<String, Long>();
+
+		final HashMap<String, Long> videos = new HashMap<String, Long>();
+
+		boolean resolved;
+	}
+
+	private static MediaIdResolver sInstance;
+
+	private final ContentResolver mResolver;
+
+	/**
+	 * 访问顺序的LRU
+	 * */
+	private final LinkedHashMap<String, DirIds> mDirs = new LinkedHashMap<String, DirIds>(
+			MAX_DIRECTORIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DirIds> eldest) {
+			return size() > MAX_DIRECTORIES;
+		}
+	};
+
+	private ThreadPoolExecutor mPrefetchExecutor;
+
+	private MediaIdResolver(Context context) {
+		mResolver = context.getApplicationContext().getContentResolver();
+	}
+
+	public static synchronized MediaIdResolver getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new MediaIdResolver(context);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 在后台线程中调用：目录还没有查询过时先查询整个目录
+	 * @return MediaStore中的id，没有时返回0
+	 * */
+	public long getId(String path, boolean isVideo) {
+		File file = new File(path);
+		String dir = file.getParent();
+		if (dir == null)
+			return 0;
+
+		DirIds ids = resolve(dir);
+		Long id = (isVideo ? ids.videos : ids.images).get(file.getName());
+		return id != null ? id.longValue() : 0;
+	}
+
+	/**
+	 * 目录加载后调用：在后台查询，之后加载缩略图时不必再等待
+	 * */
+	public void prefetch(final String dir) {
+		getPrefetchExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				resolve(dir);
+			}
+		});
+	}
+
+	/**
+	 * 目录内容变化后调用，下次使用时重新查询
+	 * */
+	public synchronized void invalidate(String dir) {
+		mDirs.remove(dir);
+	}
+
+	private DirIds resolve(String dir) {
+		DirIds ids;
+		synchronized (this) {
+			ids = mDirs.get(dir);
+			if (ids == null) {
+				ids = new DirIds();
+				mDirs.put(dir, ids);
+			}
+		}
+
+		// 只锁这一个目录，查询期间其他目录不受影响
+		synchronized (ids) {
+			if (!ids.resolved) {
+				query(dir, ids);
+				ids.resolved = true;
+			}
+		}
+		return ids;
+	}
+
+	private void query(String dir, DirIds ids) {
+		long start = System.currentTimeMillis();
+		String prefix = escapeLike(dir.endsWith(File.separator) ? dir : dir
+				+ File.separator);
+		String[] selectionArgs = new String[] { prefix + "%",
+				prefix + "%" + File.separator + "%" };
+		Uri uri = Files.getContentUri(VOLUME_NAME);
+		Cursor c = null;
+		try {
+			c = mResolver.query(uri, COLUMNS, SELECTION, selectionArgs, null);
+			if (c == null)
+				return;
+
+			while (c.moveToNext()) {
+				String path = c.getString(1);
+				if (path == null)
+					continue;
+				// LIKE不区分大小写，这里再精确比较一次
+				File file = new File(path);
+				if (!dir.equals(file.getParent()))
+					continue;
+
+				Long id = Long.valueOf(c.getLong(0));
+				if (c.getInt(2) == FileColumns.MEDIA_TYPE_VIDEO) {
+					ids.videos.put(file.getName(), id);
+				} else {
+					ids.images.put(file.getName(), id);
+				}
+			}
+		} catch (RuntimeException e) {
+			// 媒体库不可用时当作没有记录，缩略图会自己生成
+			Log.e(LOG_TAG, "query: " + dir + ", " + e.toString());
+		} finally {
+			if (c != null)
+				c.close();
+		}
+		Log.v(LOG_TAG, "query >>> " + dir + ", images: " + ids.images.size()
+				+ ", videos: " + ids.videos.size() + ", "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * 转义LIKE中的通配符
+	 * */
+	private static String escapeLike(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 8);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '%' || c == '_' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private synchronized ThreadPoolExecutor getPrefetchExecutor() {
+		if (mPrefetchExecutor == null) {
+			mPrefetchExecutor = new ThreadPoolExecutor(1, 1,
+					KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "MediaIdResolver");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			mPrefetchExecutor.allowCoreThreadTimeOut(true);
+		}
+		return mPrefetchExecutor;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * 纯Java的目录监视，定时比较目录内容，没有FileObserver的环境（例如在PC上测试）使用
+ * 判断变化依据修改时间和大小，与FileObserverBackend报告的事件粒度相同
+ * */
+public class PollingWatchBackend implements DirectoryWatcher.Backend {
+
+	private final long mIntervalMs;
+
+	private Timer mTimer;
+
+	public PollingWatchBackend(long intervalMs) {
+		mIntervalMs = intervalMs;
+	}
+
+	@Override
+	public synchronized void start(String dir, final DirectoryWatcher watcher) {
+		stop();
+		final File directory = new File(dir);
+		final HashMap<String, Long> initial = scan(directory);
+		mTimer = new Timer("PollingWatchBackend", true);
+		mTimer.schedule(new TimerTask() {
+			private HashMap<String, Long> mLast = initial;
+
+			@Override
+			public void run() {
+				HashMap<String, Long> current = scan(directory);
+				if (current == null || mLast == null) {
+					if (current != mLast)
+						watcher.onEvent(null);
+					mLast = current;
+					return;
+				}
+
+				for (Map.Entry<String, Long> e : current.entrySet()) {
+					if (!e.getValue().equals(mLast.remove(e.getKey())))
+						watcher.onEvent(e.getKey());
+				}
+				// 剩下的是被删除的
+				for (String name : mLast.keySet()) {
+					watcher.onEvent(name);
+				}
+				mLast = current;
+			}
+		}, mIntervalMs, mIntervalMs);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (mTimer != null) {
+			mTimer.cancel();
+			mTimer = null;
+		}
+	}
+
+	/**
+	 * @return 文件名到修改时间和大小的摘要，目录不存在时返回null
+	 * */
+	private static HashMap<String, Long> scan(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return null;
+
+		HashMap<String, Long> result = new HashMap<String, Long>(files.length * 2);
+		for (File f : files) {
+			result.put(f.getName(), f.lastModified() * 31 + f.length());
+		}
+		return result;
+	}
+}
@@ -19,7 +19,155 @@
 
 package net.micode.fileexplorer;
 
-import android.app.Activity;
+import java.io.File;
+import java.util.ArrayList;
 
-public class SearchActivity extends Activity {
+import android.app.ListActivity;
+import android.app.SearchManager;
+import android.content.ActivityNotFoundException;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * 职责：显示文件名搜索的结果
+ * 查询语法：直接输入时匹配文件名中任意位置，以*结尾时匹配文件名开头，"*.ext"按扩展名过滤，
+ * 例如"song*.mp3"
+ * */
+public class SearchActivity extends ListActivity {
+	private static final String LOG_TAG = "SearchActivity";
+
+	private static final int MAX_RESULTS = 500;
+
+	private SearchTask mTask;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		// 从全局搜索直接进入时索引可能还没有启动
+		FileSearchIndex.getInstance().start(
+				new File(getCacheDir(), "search_index"),
+				Util.getSdDirectory());
+		handleIntent(getIntent());
+	}
+
+	@Override
+	protected void onNewIntent(Intent intent) {
+		setIntent(intent);
+		handleIntent(intent);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (mTask != null) {
+			mTask.cancel(false);
+		}
+	}
+
+	private void handleIntent(Intent intent) {
+		if (!Intent.ACTION_SEARCH.equals(intent.getAction()))
+			return;
+
+		String query = intent.getStringExtra(SearchManager.QUERY);
+		if (TextUtils.isEmpty(query))
+			return;
+
+		setTitle(query);
+		if (mTask != null) {
+			mTask.cancel(false);
+		}
+		mTask = new SearchTask();
+		mTask.execute(query);
+	}
+
+	@Override
+	protected void onListItemClick(ListView l, View v, int position, long id) {
+		String path = (String) l.getItemAtPosition(position);
+		File file = new File(path);
+		if (file.isDirectory()) {
+			// 在浏览界面中打开该目录
+			Intent intent = new Intent(this, FileExplorerTabActivity.class);
+			intent.setData(Uri.fromFile(file));
+			startActivity(intent);
+		} else {
+			try {
+				IntentBuilder.viewFile(this, path);
+			} catch (ActivityNotFoundException e) {
+				Log.e(LOG_TAG, "fail to view file: " + e.toString());
+			}
+		}
+	}
+
+	private class SearchTask extends AsyncTask<String, Void, ArrayList<String>> {
+		@Override
+		protected ArrayList<String> doInBackground(String... params) {
+			String text = params[0].trim();
+			String extension = null;
+			boolean prefix = false;
+			int star = text.lastIndexOf("*.");
+			if (star >= 0) {
+				extension = text.substring(star + 2);
+				text = text.substring(0, star);
+				prefix = !TextUtils.isEmpty(text);
+			} else if (text.endsWith("*")) {
+				text = text.substring(0, text.length() - 1);
+				prefix = true;
+			}
+
+			ArrayList<String> result = FileSearchIndex.getInstance().search(
+					text, prefix, extension,
+					Settings.instance().getShowDotAndHiddenFiles(), MAX_RESULTS);
+			// 索引可能还没有跟上最近的变化
+			for (int i = result.size() - 1; i >= 0; i--) {
+				if (!new File(result.get(i)).exists())
+					result.remove(i);
+			}
+			return result;
+		}
+
+		@Override
+		protected void onPostExecute(ArrayList<String> result) {
+			if (mTask != this)
+				return;
+
+			mTask = null;
+			setListAdapter(new ResultAdapter(SearchActivity.this, result));
+			if (result.isEmpty()) {
+				Toast.makeText(SearchActivity.this, R.string.search_no_result,
+						Toast.LENGTH_SHORT).show();
+			}
+		}
+	}
+
+	/**
+	 * 第一行显示文件名，第二行显示所在目录
+	 * */
+	private static class ResultAdapter extends ArrayAdapter<String> {
+		public ResultAdapter(Context context, ArrayList<String> paths) {
+			super(context, android.R.layout.simple_list_item_2,
+					android.R.id.text1, paths);
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = super.getView(position, convertView, parent);
+			String path = getItem(position);
+			((TextView) view.findViewById(android.R.id.text1)).setText(Util
+					.getNameFromFilepath(path));
+			((TextView) view.findViewById(android.R.id.text2)).setText(Util
+					.getPathFromFilepath(path));
+			return view;
+		}
+	}
 }
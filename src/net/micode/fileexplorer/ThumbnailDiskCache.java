@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * 职责：缩略图的磁盘缓存
+ * 所有缩略图压缩后追加到一个数据文件中，索引记录每个文件(路径, 大小, 修改时间)对应的位置；
+ * 数据文件和索引都带有数据文件的代号，不一致的索引不使用；
+ * 文件变化后大小或修改时间不再匹配，旧的缩略图自然失效。数据文件超过上限时，
+ * 按最近使用的顺序保留一部分，重写成新的数据文件
+ * */
+public class ThumbnailDiskCache {
+	private static final String LOG_TAG = "ThumbnailDiskCache";
+
+	private static final int INDEX_MAGIC = 0x46455449; // "FETI"
+
+	private static final int INDEX_VERSION = 2;
+
+	private static final int BLOB_MAGIC = 0x46455442; // "FETB"
+
+	/**
+	 * 数据文件开头：magic和代号
+	 * */
+	private static final int BLOB_HEADER_SIZE = 12;
+
+	private static final String BLOB_NAME = "thumbs.blob";
+
+	private static final String INDEX_NAME = "thumbs.idx";
+
+	private static final long MAX_BLOB_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * 压缩时保留的数据量
+	 * */
+	private static final long COMPACT_TARGET = MAX_BLOB_SIZE * 3 / 4;
+
+	/**
+	 * 写入这么多条之后保存一次索引
+	 * */
+	private static final int SAVE_INTERVAL = 32;
+
+	private static final int JPEG_QUALITY = 85;
+
+	private static class Entry {
+		final long fileSize;
+
+		final long modified;
+
+		final long offset;
+
+		final int length;
+
+		Entry(long fileSize, long modified, long offset, int length) {
+			this.fileSize = fileSize;
+			this.modified = modified;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static ThumbnailDiskCache sInstance;
+
+	private final File mDir;
+
+	/**
+	 * 访问顺序，最早的在前
+	 * */
+	private final LinkedHashMap<String, Entry> mIndex = new LinkedHashMap<String, Entry>(
+			256, 0.75f, true);
+
+	private RandomAccessFile mBlob;
+
+	/**
+	 * 数据文件的代号，同时写在数据文件开头和索引中；每次压缩生成新的代号，
+	 * 两者不一致说明压缩中途进程退出，索引中的位置对不上数据文件
+	 * */
+	private long mGeneration;
+
+	private boolean mLoaded;
+
+	private int mUnsaved;
+
+	private ThumbnailDiskCache(File dir) {
+		mDir = dir;
+	}
+
+	/**
+	 * 第一次调用时确定目录
+	 * */
+	public static synchronized ThumbnailDiskCache getInstance(File dir) {
+		if (sInstance == null) {
+			sInstance = new ThumbnailDiskCache(dir);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 在后台线程中调用
+	 * @return 与文件当前的大小和修改时间匹配的缩略图，没有时返回null
+	 * */
+	public Bitmap get(String path, long fileSize, long modified) {
+		byte[] data;
+		synchronized (this) {
+			if (!open())
+				return null;
+
+			Entry entry = mIndex.get(path);
+			if (entry == null)
+				return null;
+			if (entry.fileSize != fileSize || entry.modified != modified) {
+				mIndex.remove(path);
+				return null;
+			}
+
+			data = new byte[entry.length];
+			try {
+				mBlob.seek(entry.offset);
+				mBlob.readFully(data);
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "get: " + e.toString());
+				mIndex.remove(path);
+				return null;
+			}
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length);
+	}
+
+	/**
+	 * 在后台线程中调用：压缩bitmap并追加到数据文件
+	 * */
+	public void put(String path, long fileSize, long modified, Bitmap bitmap) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * 1024);
+		// 带透明度的（例如APK图标）用PNG，其他用JPEG
+		if (!bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG
+				: Bitmap.CompressFormat.JPEG, JPEG_QUALITY, bytes))
+			return;
+		byte[] data = bytes.toByteArray();
+
+		synchronized (this) {
+			if (!open())
+				return;
+
+			try {
+				long offset = mBlob.length();
+				mBlob.seek(offset);
+				mBlob.write(data);
+				mIndex.put(path, new Entry(fileSize, modified, offset,
+						data.length));
+				if (offset + data.length > MAX_BLOB_SIZE) {
+					compact();
+				} else if (++mUnsaved >= SAVE_INTERVAL) {
+					saveIndex();
+				}
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "put: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * 保存还没有保存的索引
+	 * */
+	public synchronized void flush() {
+		if (mLoaded && mUnsaved > 0) {
+			saveIndex();
+		}
+	}
+
+	/**
+	 * 第一次使用时加载索引；索引之外的数据（上次保存索引后追加的）在下次压缩时回收
+	 * */
+	private boolean open() {
+		if (mLoaded)
+			return mBlob != null;
+
+		mLoaded = true;
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			Log.e(LOG_TAG, "Fail to create " + mDir);
+			return false;
+		}
+		try {
+			mBlob = new RandomAccessFile(new File(mDir, BLOB_NAME), "rw");
+			if (!readBlobHeader() || !loadIndex(mBlob.length())) {
+				// 没有可用的索引，数据文件中的内容都找不到了，从头开始
+				mIndex.clear();
+				resetBlob(mBlob, newGeneration());
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "open: " + e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	private boolean readBlobHeader() throws IOException {
+		if (mBlob.length() < BLOB_HEADER_SIZE)
+			return false;
+		mBlob.seek(0);
+		if (mBlob.readInt() != BLOB_MAGIC)
+			return false;
+		mGeneration = mBlob.readLong();
+		return true;
+	}
+
+	/**
+	 * 清空数据文件，只写入文件头
+	 * */
+	private static void resetBlob(RandomAccessFile blob, long generation)
+			throws IOException {
+		blob.setLength(0);
+		blob.seek(0);
+		blob.writeInt(BLOB_MAGIC);
+		blob.writeLong(generation);
+	}
+
+	private long newGeneration() {
+		long generation = System.currentTimeMillis() ^ System.nanoTime();
+		return generation != mGeneration ? generation : generation + 1;
+	}
+
+	/**
+	 * @return 索引与数据文件的代号一致并读取成功时返回true
+	 * */
+	private boolean loadIndex(long blobLength) {
+		File file = new File(mDir, INDEX_NAME);
+		if (!file.exists())
+			return false;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 16 * 1024));
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+					|| in.readLong() != mGeneration)
+				return false;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				Entry entry = new Entry(in.readLong(), in.readLong(),
+						in.readLong(), in.readInt());
+				if (entry.offset + entry.length <= blobLength) {
+					mIndex.put(path, entry);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "loadIndex: " + e.toString());
+			return false;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * 按访问顺序写出，先写临时文件再改名
+	 * */
+	private void saveIndex() {
+		mUnsaved = 0;
+		File file = new File(mDir, INDEX_NAME);
+		File tmp = new File(mDir, INDEX_NAME + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 16 * 1024));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(mGeneration);
+			out.writeInt(mIndex.size());
+			for (Map.Entry<String, Entry> e : mIndex.entrySet()) {
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.fileSize);
+				out.writeLong(entry.modified);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.e(LOG_TAG, "saveIndex: fail to rename " + tmp);
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "saveIndex: " + e.toString());
+			tmp.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * 丢掉最久没有使用的条目，把剩下的复制到新的数据文件
+	 * 先写新数据文件和索引再替换，中途失败时旧的仍然可用
+	 * */
+	private void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		// 从最近使用的开始保留
+		ArrayList<String> paths = new ArrayList<String>(mIndex.keySet());
+		long kept = 0;
+		int first = paths.size();
+		while (first > 0) {
+			Entry entry = mIndex.get(paths.get(first - 1));
+			if (kept + entry.length > COMPACT_TARGET)
+				break;
+			kept += entry.length;
+			first--;
+		}
+
+		File newBlobFile = new File(mDir, BLOB_NAME + ".tmp");
+		RandomAccessFile newBlob = new RandomAccessFile(newBlobFile, "rw");
+		LinkedHashMap<String, Entry> newIndex = new LinkedHashMap<String, Entry>(
+				256, 0.75f, true);
+		long generation = newGeneration();
+		try {
+			resetBlob(newBlob, generation);
+			byte[] buffer = new byte[0];
+			for (int i = first; i < paths.size(); i++) {
+				String path = paths.get(i);
+				Entry entry = mIndex.get(path);
+				if (buffer.length < entry.length) {
+					buffer = new byte[entry.length];
+				}
+				mBlob.seek(entry.offset);
+				mBlob.readFully(buffer, 0, entry.length);
+				long offset = newBlob.getFilePointer();
+				newBlob.write(buffer, 0, entry.length);
+				newIndex.put(path, new Entry(entry.fileSize, entry.modified,
+						offset, entry.length));
+			}
+		} catch (IOException e) {
+			closeQuietly(newBlob);
+			newBlobFile.delete();
+			throw e;
+		}
+
+		closeQuietly(mBlob);
+		closeQuietly(newBlob);
+		mBlob = null;
+		if (!newBlobFile.renameTo(new File(mDir, BLOB_NAME))) {
+			// 旧的数据文件还在，重新打开继续使用
+			Log.e(LOG_TAG, "compact: fail to rename " + newBlobFile);
+			newBlobFile.delete();
+			mBlob = new RandomAccessFile(new File(mDir, BLOB_NAME), "rw");
+			return;
+		}
+		mBlob = new RandomAccessFile(new File(mDir, BLOB_NAME), "rw");
+		// 进程在这里退出时，旧索引的代号与新数据文件不一致，下次打开时丢弃
+		mGeneration = generation;
+		mIndex.clear();
+		mIndex.putAll(newIndex);
+		saveIndex();
+		Log.v(LOG_TAG, "compact >>> entries: " + mIndex.size() + ", bytes: "
+				+ kept + ", " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "close: " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * This file is part of FileExplorer.
+ *
+ * FileExplorer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FileExplorer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.micode.fileexplorer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * 职责：并行计算目录树的大小
+ * 每个目录是线程池中的一个任务，子目录作为新任务提交；目录的任务和所有子目录都完成时，
+ * 把合计加到上级目录上（与fork/join相同的聚合方式，但不阻塞等待子任务）。
+ * 每个目录中文件的合计按目录的修改时间缓存，目录没有变化时不再列目录和stat其中的文件；
+ * 注意：原地改写文件不会改变目录的修改时间，这种变化要等目录本身变化后才反映出来。
+ * 设置了setDiskStore时缓存在计算完成后保存，重新启动后再次计算只需要列出变化了的目录
+ * */
+public class TreeSizeService {
+	private static final String LOG_TAG = "TreeSizeService";
+
+	private static final int DISK_MAGIC = 0x46455453; // "FETS"
+
+	private static final int DISK_VERSION = 1;
+
+	/**
+	 * 进度回调的间隔，不论有多少文件
+	 * */
+	private static final long PROGRESS_INTERVAL_MS = 200;
+
+	private static final int MAX_WORKERS = 3;
+
+	/**
+	 * 不跟进更深的目录，防止符号链接造成的循环
+	 * */
+	private static final int MAX_DEPTH = 32;
+
+	/**
+	 * 目录缓存占应用内存上限的比例的倒数
+	 * */
+	private static final int CACHE_MEMORY_DIVISOR = 16;
+
+	/**
+	 * 每个缓存条目在字符串之外的大致开销
+	 * */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * 修改时间在这段时间之内的目录可能还在变化，且文件系统的时间精度可能只有秒，不缓存
+	 * */
+	private static final long RACY_WINDOW_MS = 2000;
+
+	/**
+	 * 回调都在UI线程中执行
+	 * */
+	public interface Listener {
+		void onProgress(long size, int fileCount);
+
+		void onFinish(Node root);
+	}
+
+	/**
+	 * 计算结果中的一个目录
+	 * */
+	public static class Node {
+		public final String path;
+
+		public final Node parent;
+
+		/**
+		 * 目录中直接包含的文件（不含子目录）的合计
+		 * */
+		public long filesSize;
+
+		public int fileCount;
+
+		/**
+		 * 包含所有子目录的合计，完成后有效
+		 * */
+		public long totalSize;
+
+		public int totalCount;
+
+		public final ArrayList<Node> children = new ArrayList<Node>();
+
+		/**
+		 * 还没有完成的子目录数，加上自己的一个
+		 * */
+		private final AtomicInteger mPending = new AtomicInteger(1);
+
+		private final AtomicLong mChildrenSize = new AtomicLong();
+
+		private final AtomicInteger mChildrenCount = new AtomicInteger();
+
+		private final int mDepth;
+
+		private Node(Node parent, String path) {
+			this.parent = parent;
+			this.path = path;
+			mDepth = parent != null ? parent.mDepth + 1 : 0;
+		}
+	}
+
+	/**
+	 * 一次计算，可以从任意线程取消
+	 * */
+	public class Request {
+		private final Listener mListener;
+
+		private final Node mRoot;
+
+		private final AtomicLong mSize = new AtomicLong();
+
+		private final AtomicInteger mFileCount = new AtomicInteger();
+
+		private volatile boolean mCancelled;
+
+		/**
+		 * 全部目录已经完成；进度回调看到后不再继续
+		 * */
+		private volatile boolean mFinished;
+
+		private final Runnable mProgress = new Runnable() {
+			@Override
+			public void run() {
+				if (mCancelled || mFinished)
+					return;
+				mListener.onProgress(mSize.get(), mFileCount.get());
+				mHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+			}
+		};
+
+		private Request(String path, Listener l) {
+			mListener = l;
+			mRoot = new Node(null, path);
+		}
+
+		/**
+		 * 已经提交的目录任务不再列目录，立即结束；之后不会再有回调
+		 * */
+		public void cancel() {
+			mCancelled = true;
+			mHandler.removeCallbacks(mProgress);
+		}
+
+		/**
+		 * 在工作线程中调用；进度回调在UI线程中移除，不会与正在执行的进度回调交错
+		 * */
+		private void finish() {
+			mFinished = true;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mHandler.removeCallbacks(mProgress);
+					if (!mCancelled)
+						mListener.onFinish(mRoot);
+				}
+			});
+		}
+	}
+
+	/**
+	 * 一个目录中直接包含的内容
+	 * */
+	private static class DirEntry {
+		final long modified;
+
+		final long filesSize;
+
+		final int fileCount;
+
+		final String[] subdirs;
+
+		DirEntry(long modified, long filesSize, int fileCount, String[] subdirs) {
+			this.modified = modified;
+			this.filesSize = filesSize;
+			this.fileCount = fileCount;
+			this.subdirs = subdirs;
+		}
+	}
+
+	private static TreeSizeService sInstance;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private final ThreadPoolExecutor mExecutor;
+
+	/**
+	 * 不按LRU淘汰：扫描整个存储卡时目录按固定的顺序循环访问，LRU会在再次访问前把条目全部挤出。
+	 * 超出内存预算时先丢掉最深的目录，浅层目录下面的子树最大，保留它们的收益最高
+	 * */
+	private final HashMap<String, DirEntry> mCache = new HashMap<String, DirEntry>(
+			1024);
+
+	private final long mMaxCacheBytes = Runtime.getRuntime().maxMemory()
+			/ CACHE_MEMORY_DIVISOR;
+
+	/**
+	 * mCache中条目的大致字节数，由mCache的锁保护
+	 * */
+	private long mCacheBytes;
+
+	/**
+	 * 不小于这个深度的新目录不再缓存，由trimByDepth降低；
+	 * 避免同一层的目录在每次扫描时互相挤出
+	 * */
+	private int mAdmitDepth = Integer.MAX_VALUE;
+
+	private File mDiskStore;
+
+	/**
+	 * 缓存在上次保存后是否有变化，由mCache的锁保护
+	 * */
+	private boolean mDirty;
+
+	private TreeSizeService() {
+		int workers = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime()
+				.availableProcessors()));
+		mExecutor = new ThreadPoolExecutor(workers, workers, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread("TreeSizeService #"
+								+ mCount.incrementAndGet()) {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						};
+					}
+				});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public static synchronized TreeSizeService getInstance() {
+		if (sInstance == null) {
+			sInstance = new TreeSizeService();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 缓存保存到file，并在后台加载上次保存的缓存；只有第一次调用有效
+	 * */
+	public synchronized void setDiskStore(final File file) {
+		if (mDiskStore != null)
+			return;
+
+		mDiskStore = file;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				load(file);
+			}
+		});
+	}
+
+	/**
+	 * 在后台计算path目录树的大小，必须在UI线程中调用
+	 * */
+	public Request compute(String path, Listener l) {
+		Request request = new Request(path, l);
+		mHandler.postDelayed(request.mProgress, PROGRESS_INTERVAL_MS);
+		submit(request, request.mRoot);
+		return request;
+	}
+
+	private void submit(final Request request, final Node node) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				visit(request, node);
+			}
+		});
+	}
+
+	private void visit(Request request, Node node) {
+		if (!request.mCancelled) {
+			DirEntry entry = getEntry(node.path);
+			node.filesSize = entry.filesSize;
+			node.fileCount = entry.fileCount;
+			request.mSize.addAndGet(entry.filesSize);
+			request.mFileCount.addAndGet(entry.fileCount);
+
+			if (node.mDepth < MAX_DEPTH) {
+				// 先全部加入children再提交，子任务完成时children已经完整
+				for (String name : entry.subdirs) {
+					node.children.add(new Node(node, Util.makePath(node.path,
+							name)));
+				}
+				node.mPending.addAndGet(node.children.size());
+				for (Node child : node.children) {
+					submit(request, child);
+				}
+			}
+		}
+		complete(request, node);
+	}
+
+	/**
+	 * node自己或一个子目录完成；全部完成时把合计交给上级，直到根目录
+	 * */
+	private void complete(Request request, Node node) {
+		while (node.mPending.decrementAndGet() == 0) {
+			node.totalSize = node.filesSize + node.mChildrenSize.get();
+			node.totalCount = node.fileCount + node.mChildrenCount.get();
+			Node parent = node.parent;
+			if (parent == null) {
+				request.finish();
+				save();
+				return;
+			}
+			parent.mChildrenSize.addAndGet(node.totalSize);
+			parent.mChildrenCount.addAndGet(node.totalCount);
+			node = parent;
+		}
+	}
+
+	private DirEntry getEntry(String path) {
+		File dir = new File(path);
+		long modified = dir.lastModified();
+		DirEntry entry;
+		synchronized (mCache) {
+			entry = mCache.get(path);
+		}
+		if (entry != null && entry.modified == modified && modified != 0)
+			return entry;
+
+		long filesSize = 0;
+		int fileCount = 0;
+		ArrayList<String> subdirs = new ArrayList<String>();
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					subdirs.add(child.getName());
+				} else {
+					filesSize += child.length();
+					fileCount++;
+				}
+			}
+		}
+		entry = new DirEntry(modified, filesSize, fileCount,
+				subdirs.toArray(new String[subdirs.size()]));
+		if (children != null
+				&& System.currentTimeMillis() - modified > RACY_WINDOW_MS) {
+			synchronized (mCache) {
+				putEntry(path, entry);
+				mDirty = true;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * 调用者持有mCache的锁
+	 * */
+	private void putEntry(String path, DirEntry entry) {
+		DirEntry old = mCache.get(path);
+		if (old == null && depthOf(path, Integer.MAX_VALUE) >= mAdmitDepth)
+			return;
+
+		mCache.put(path, entry);
+		if (old != null) {
+			mCacheBytes -= sizeOf(path, old);
+		}
+		mCacheBytes += sizeOf(path, entry);
+		if (mCacheBytes > mMaxCacheBytes) {
+			trimByDepth(mMaxCacheBytes * 9 / 10);
+		}
+	}
+
+	/**
+	 * 从最深的目录开始丢弃，直到不超过target；调用者持有mCache的锁
+	 * */
+	private void trimByDepth(long target) {
+		// 每一层的字节数，过深的并入最后一层
+		long[] bytesByDepth = new long[MAX_DEPTH * 4];
+		for (Map.Entry<String, DirEntry> e : mCache.entrySet()) {
+			bytesByDepth[depthOf(e.getKey(), bytesByDepth.length)] += sizeOf(
+					e.getKey(), e.getValue());
+		}
+
+		// 找到一个层次：比它深的全部丢弃，这一层丢弃一部分
+		long excess = mCacheBytes - target;
+		int threshold = bytesByDepth.length - 1;
+		while (threshold > 0 && bytesByDepth[threshold] < excess) {
+			excess -= bytesByDepth[threshold];
+			threshold--;
+		}
+
+		int before = mCache.size();
+		Iterator<Map.Entry<String, DirEntry>> iterator = mCache.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, DirEntry> e = iterator.next();
+			int depth = depthOf(e.getKey(), bytesByDepth.length);
+			if (depth < threshold)
+				continue;
+			int bytes = sizeOf(e.getKey(), e.getValue());
+			if (depth == threshold) {
+				if (excess <= 0)
+					continue;
+				excess -= bytes;
+			}
+			iterator.remove();
+			mCacheBytes -= bytes;
+		}
+		mAdmitDepth = threshold;
+		Log.v(LOG_TAG, "trim >>> entries: " + before + " -> " + mCache.size()
+				+ ", depth: " + threshold + ", bytes: " + mCacheBytes);
+	}
+
+	private static int depthOf(String path, int limit) {
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == File.separatorChar) {
+				depth++;
+			}
+		}
+		return Math.min(depth, limit - 1);
+	}
+
+	private static int sizeOf(String path, DirEntry entry) {
+		int bytes = ENTRY_OVERHEAD + path.length() * 2;
+		for (String name : entry.subdirs) {
+			bytes += 40 + name.length() * 2;
+		}
+		return bytes;
+	}
+
+	/**
+	 * 写出所有缓存的目录
+	 * */
+	private synchronized void save() {
+		File file = mDiskStore;
+		if (file == null)
+			return;
+
+		String[] paths;
+		DirEntry[] entries;
+		synchronized (mCache) {
+			if (!mDirty)
+				return;
+			mDirty = false;
+			paths = mCache.keySet().toArray(new String[mCache.size()]);
+			entries = mCache.values().toArray(new DirEntry[mCache.size()]);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 64 * 1024));
+			out.writeInt(DISK_MAGIC);
+			out.writeInt(DISK_VERSION);
+			out.writeInt(paths.length);
+			for (int i = 0; i < paths.length; i++) {
+				DirEntry entry = entries[i];
+				out.writeUTF(paths[i]);
+				out.writeLong(entry.modified);
+				out.writeLong(entry.filesSize);
+				out.writeInt(entry.fileCount);
+				out.writeInt(entry.subdirs.length);
+				for (String name : entry.subdirs) {
+					out.writeUTF(name);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.e(LOG_TAG, "save: fail to rename " + tmp);
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "save: " + e.toString());
+			tmp.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	private void load(File file) {
+		if (!file.exists())
+			return;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 64 * 1024));
+			if (in.readInt() != DISK_MAGIC || in.readInt() != DISK_VERSION)
+				return;
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long modified = in.readLong();
+				long filesSize = in.readLong();
+				int fileCount = in.readInt();
+				String[] subdirs = new String[in.readInt()];
+				for (int j = 0; j < subdirs.length; j++) {
+					subdirs[j] = in.readUTF();
+				}
+				synchronized (mCache) {
+					// 已经在本次运行中计算过的更新
+					if (!mCache.containsKey(path)) {
+						putEntry(path, new DirEntry(modified, filesSize,
+								fileCount, subdirs));
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "load: " + e.toString());
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "close: " + e.toString());
+		}
+	}
+}
@@ -126,21 +126,13 @@ public class Util {
 		lFileInfo.IsDir = lFile.isDirectory();
 		lFileInfo.filePath = filePath;
 		if (lFileInfo.IsDir) {
-			int lCount = 0;
-			File[] files = lFile.listFiles(filter);
-
-			// null means we cannot access this dir
-			if (files == null) {
+			// we cannot access this dir
+			if (!lFileInfo.canRead) {
 				return null;
 			}
 
-			for (File child : files) {
-				if ((!child.isHidden() || showHidden)
-						&& Util.isNormalFile(child.getAbsolutePath())) {
-					lCount++;
-				}
-			}
-			lFileInfo.Count = lCount;
+			// 子文件数不在这里计算，显示时由DirectoryCountLoader在后台计算
+			lFileInfo.Count = FileInfo.COUNT_UNKNOWN;
 
 		} else {
 
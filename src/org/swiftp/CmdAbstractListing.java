@@ -39,51 +39,83 @@ public abstract class CmdAbstractListing extends FtpCmd {
 	
 	abstract String makeLsString(File file);
 	
-	// Creates a directory listing by finding the contents of the directory,
-	// calling makeLsString on each file, and concatenating the results.
+	// Adds one directory entry to a streamed listing. By default this is the
+	// output of makeLsString, but subclasses can write it more directly.
+	// Returns false if the data socket has failed.
+	protected boolean writeEntry(ListingWriter writer, File file) {
+		String curLine = makeLsString(file);
+		return curLine == null || writer.write(curLine);
+	}
+	
+	// Streams a directory listing over the data socket, calling makeLsString
+	// on each entry as it goes, so the whole listing is never held in memory.
 	// Returns an error string if failure, returns null on success. May be
 	// called by CmdLIST or CmdNLST, since they each override makeLsString
 	// in a different way.
-	public String listDirectory(StringBuilder response, File dir) {
+	public String sendDirectoryListing(File dir) {
 		if(!dir.isDirectory()) {
-			return "500 Internal error, listDirectory on non-directory\r\n";
+			return "500 Internal error, sendDirectoryListing on non-directory\r\n";
 		}
 		myLog.l(Log.DEBUG, "Listing directory: " + dir.toString());
 		
-		// Get a listing of all files and directories in the path
-		File[] entries = dir.listFiles();
-		if(entries == null) {
+		// Only the names are fetched up front; each entry is examined when
+		// its line is written. (There's no incremental directory iterator on
+		// this platform.)
+		String[] names = dir.list();
+		if(names == null) {
 			return "500 Couldn't list directory. Check config and mount status.\r\n";
 		}
-		myLog.l(Log.DEBUG, "Dir len " + entries.length);
-		for(File entry : entries) {
-			String curLine = makeLsString(entry);
-			if(curLine != null) {
-				response.append(curLine);
+		myLog.l(Log.DEBUG, "Dir len " + names.length);
+		if(!openListingSocket()) {
+			return "425 Error opening data socket\r\n";
+		}
+		ListingWriter writer = new ListingWriter(sessionThread, 
+				Defaults.getDataChunkSize());
+		for(String name : names) {
+			if(!writeEntry(writer, new File(dir, name))) {
+				break;
 			}
 		}
-		return null;
+		if(!writer.flush()) {
+			myLog.l(Log.DEBUG, "Listing stream failure");
+			sessionThread.closeDataSocket();
+			return "426 Data socket or network error\r\n";
+		}
+		return finishListing();
 	}
 
 	// Send the directory listing over the data socket. Used by CmdLIST and
 	// CmdNLST.
 	// Returns an error string on failure, or returns null if successful.
 	protected String sendListing(String listing) {
-		if(sessionThread.startUsingDataSocket()) {
-			myLog.l(Log.DEBUG, "LIST/NLST done making socket");
-		} else {
-			sessionThread.closeDataSocket();
+		if(!openListingSocket()) {
 			return "425 Error opening data socket\r\n";
 		}
-		String mode = sessionThread.isBinaryMode() ? "BINARY" : "ASCII";
-		sessionThread.writeString(
-				"150 Opening "+mode+" mode data connection for file list\r\n");
 		myLog.l(Log.DEBUG, "Sent code 150, sending listing string now");
 		if(!sessionThread.sendViaDataSocket(listing)) {
 			myLog.l(Log.DEBUG, "sendViaDataSocket failure");
 			sessionThread.closeDataSocket();
 			return "426 Data socket or network error\r\n";
 		}
+		return finishListing();
+	}
+	
+	// Opens the data socket and sends the 150 reply. Returns false if the
+	// socket couldn't be opened.
+	private boolean openListingSocket() {
+		if(sessionThread.startUsingDataSocket()) {
+			myLog.l(Log.DEBUG, "LIST/NLST done making socket");
+		} else {
+			sessionThread.closeDataSocket();
+			return false;
+		}
+		String mode = sessionThread.isBinaryMode() ? "BINARY" : "ASCII";
+		sessionThread.writeString(
+				"150 Opening "+mode+" mode data connection for file list\r\n");
+		return true;
+	}
+	
+	private String finishListing() {
 		sessionThread.closeDataSocket();
 		myLog.l(Log.DEBUG, "Listing sendViaDataSocket success");
 		sessionThread.writeString("226 Data transmission OK\r\n");
@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 import android.util.Log;
 
@@ -49,6 +50,9 @@ abstract public class CmdAbstractStore extends FtpCmd {
 		
 		String errString = null;
 		FileOutputStream out = null;
+		RandomAccessFile restartFile = null;
+		// APPE always writes at the end, so a REST marker only matters to STOR
+		long offset = sessionThread.consumeRestartOffset();
 		//DedicatedWriter dedicatedWriter = null;
 //		int origPriority = Thread.currentThread().getPriority();
 //		myLog.l(Log.DEBUG, "STOR original priority: " + origPriority);
@@ -64,7 +68,18 @@ abstract public class CmdAbstractStore extends FtpCmd {
 			}
 
 			try {
-				if(storeFile.exists()) {
+				if(offset > 0 && !append) {
+					// Resuming an interrupted STOR: keep what the client sent
+					// before and overwrite in place from the restart offset.
+					if(offset > storeFile.length()) {
+						errString = "554 Invalid REST parameter\r\n";
+						break storing;
+					}
+					restartFile = new RandomAccessFile(storeFile, "rw");
+					restartFile.seek(offset);
+					out = new FileOutputStream(restartFile.getFD());
+					myLog.l(Log.DEBUG, "STOR restarting at offset " + offset);
+				} else if(storeFile.exists()) {
 					if(!append) {
 						if(!storeFile.delete()) {
 							errString = "451 Couldn't truncate file\r\n";
@@ -74,7 +89,9 @@ abstract public class CmdAbstractStore extends FtpCmd {
 						Util.deletedFileNotify(storeFile.getPath());
 					}
 				}
-				out = new FileOutputStream(storeFile, append);
+				if(out == null) {
+					out = new FileOutputStream(storeFile, append);
+				}
 			} catch(FileNotFoundException e) {
 				try {
 					errString = "451 Couldn't open file \"" + param + "\" aka \"" + 
@@ -83,6 +100,9 @@ abstract public class CmdAbstractStore extends FtpCmd {
 					errString = "451 Couldn't open file, nested exception\r\n";
 				}
 				break storing;
+			} catch(IOException e) {
+				errString = "451 Couldn't seek to restart offset\r\n";
+				break storing;
 			}
 			if(!sessionThread.startUsingDataSocket()) {
 				errString = "425 Couldn't open data socket\r\n";
@@ -199,6 +219,9 @@ abstract public class CmdAbstractStore extends FtpCmd {
 			if(out != null) {
 				out.close();
 			}
+			if(restartFile != null) {
+				restartFile.close();
+			}
 		} catch (IOException e) {}
 		
 		if(errString != null) {
@@ -32,6 +32,8 @@ public class CmdFEAT extends FtpCmd implements Runnable {
 		//sessionThread.writeString("211 No extended features\r\n");
 		sessionThread.writeString("211-Features supported\r\n");
 		sessionThread.writeString(" UTF8\r\n"); // advertise UTF8 support (fixes bug 14)
+		sessionThread.writeString(" REST STREAM\r\n"); // resumable transfers
+		sessionThread.writeString(" MLST " + MlsxFormatter.FACTS + "\r\n");
 		sessionThread.writeString("211 End\r\n");
 		myLog.l(Log.DEBUG, "Gave FEAT response");
 	}
@@ -27,16 +27,15 @@ along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
 package org.swiftp;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 import android.util.Log;
 
 public class CmdLIST extends CmdAbstractListing implements Runnable {
 	// The approximate number of milliseconds in 6 months
-	public final static long MS_IN_SIX_MONTHS = 6 * 30 * 24 * 60 * 60 * 1000;
+	public final static long MS_IN_SIX_MONTHS = LsFormatter.MS_IN_SIX_MONTHS;
 	private String input;
+	// One formatter, with its buffers, per listing
+	private LsFormatter formatter = null;
 	
 	public CmdLIST(SessionThread sessionThread, String input) {
 		super(sessionThread, input);
@@ -68,22 +67,16 @@ public class CmdLIST extends CmdAbstractListing implements Runnable {
 					break mainblock;
 				}				
 			}
-			String listing;
 			if(fileToList.isDirectory()) {
-				StringBuilder response = new StringBuilder();
-				errString = listDirectory(response, fileToList);
-				if(errString != null) {
-					break mainblock;
-				}
-				listing = response.toString();
+				errString = sendDirectoryListing(fileToList);
 			} else {
-				listing = makeLsString(fileToList);
+				String listing = makeLsString(fileToList);
 				if(listing == null) {
 					errString = "450 Couldn't list that file\r\n";
 					break mainblock;
 				}
+				errString = sendListing(listing);
 			}
-			errString = sendListing(listing);
 			if(errString != null) {
 				break mainblock;
 			}
@@ -102,62 +95,22 @@ public class CmdLIST extends CmdAbstractListing implements Runnable {
 	// Generates a line of a directory listing in the traditional /bin/ls
 	// format.
 	protected String makeLsString(File file) {
-		StringBuilder response = new StringBuilder();
-		
-		if(!file.exists()) {
-			staticLog.l(Log.INFO, "makeLsString had nonexistent file");
-			return null;
-		}
-
-		// See Daniel Bernstein's explanation of /bin/ls format at:
-		// http://cr.yp.to/ftp/list/binls.html
-		// This stuff is almost entirely based on his recommendations.
-		
-		String lastNamePart = file.getName();
-		// Many clients can't handle files containing these symbols
-		if(lastNamePart.contains("*") || 
-		   lastNamePart.contains("/"))
-		{
-			staticLog.l(Log.INFO, "Filename omitted due to disallowed character");
-			return null;
-		} else {
-			// The following line generates many calls in large directories
-			//staticLog.l(Log.DEBUG, "Filename: " + lastNamePart);
-		}
-				
-		
-		if(file.isDirectory()) {
-			response.append("drwxr-xr-x 1 owner group");
-		} else {
-			// todo: think about special files, symlinks, devices
-			response.append("-rw-r--r-- 1 owner group");
-		}
-		
-		// The next field is a 13-byte right-justified space-padded file size
-		long fileSize = file.length();
-		String sizeString = new Long(fileSize).toString();
-		int padSpaces = 13 - sizeString.length();
-		while(padSpaces-- > 0) {
-			response.append(' ');
+		String line = getFormatter().format(file);
+		if(line == null) {
+			staticLog.l(Log.INFO, "makeLsString had nonexistent or unlistable file");
 		}
-		response.append(sizeString);
-		
-		// The format of the timestamp varies depending on whether the mtime
-		// is 6 months old
-		long mTime = file.lastModified();
-		SimpleDateFormat format;
-		// Temporarily commented out.. trying to fix Win7 display bug
-		if(System.currentTimeMillis() - mTime > MS_IN_SIX_MONTHS) {
-			// The mtime is less than 6 months ago
-			format = new SimpleDateFormat(" MMM dd HH:mm ", Locale.US);
-		} else {
-			// The mtime is more than 6 months ago
-			format = new SimpleDateFormat(" MMM dd  yyyy ", Locale.US);
+		return line;
+	}
+	
+	protected boolean writeEntry(ListingWriter writer, File file) {
+		return getFormatter().write(writer, file);
+	}
+	
+	private LsFormatter getFormatter() {
+		if(formatter == null) {
+			formatter = new LsFormatter();
 		}
-		response.append(format.format(new Date(file.lastModified())));
-		response.append(lastNamePart);
-		response.append("\r\n");
-		return response.toString();
+		return formatter;
 	}
 
 }
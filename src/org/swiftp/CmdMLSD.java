@@ -0,0 +1,81 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/* MLSD lists a directory like LIST does, but in the machine-readable form
+ * of RFC 3659, so that clients get the size and time of every entry without
+ * parsing ls output or sending SIZE for each file. The streaming is shared
+ * with LIST and NLST through CmdAbstractListing.
+ */
+
+package org.swiftp;
+
+import java.io.File;
+
+import android.util.Log;
+
+public class CmdMLSD extends CmdAbstractListing implements Runnable {
+	private String input;
+	private MlsxFormatter formatter = null;
+	
+	public CmdMLSD(SessionThread sessionThread, String input) {
+		super(sessionThread, input);
+		this.input = input;
+	}
+	
+	public void run() {
+		String errString = null;
+		
+		mainblock: {
+			String param = getParameter(input);
+			File fileToList = null;
+			if(param.equals("")) {
+				fileToList = sessionThread.getWorkingDir();
+			} else {
+				fileToList = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
+				if(violatesChroot(fileToList)) {
+					errString = "550 Listing target violates chroot\r\n";
+					break mainblock;
+				}
+			}
+			if(!fileToList.isDirectory()) {
+				// Unlike LIST, MLSD is only defined for directories
+				errString = "501 MLSD target is not a directory\r\n";
+				break mainblock;
+			}
+			formatter = new MlsxFormatter(fileToList.canWrite());
+			errString = sendDirectoryListing(fileToList);
+		}
+		
+		if(errString != null) {
+			sessionThread.writeString(errString);
+			myLog.l(Log.DEBUG, "MLSD failed with: " + errString);
+		} else {
+			myLog.l(Log.DEBUG, "MLSD completed OK");
+		}
+	}
+	
+	protected String makeLsString(File file) {
+		String facts = formatter.facts(file);
+		return facts == null ? null : facts + " " + file.getName() + "\r\n";
+	}
+	
+	protected boolean writeEntry(ListingWriter writer, File file) {
+		return formatter.write(writer, file);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * MLST gives the RFC 3659 facts of a single file or directory over the
+ * control connection.
+ */
+public class CmdMLST extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdMLST(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdMLST.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		myLog.l(Log.DEBUG, "MLST executing");
+		String param = getParameter(input);
+		String errString = null;
+		String facts = null;
+		String path = null;
+		
+		mainblock: {
+			File target;
+			if(param.equals("")) {
+				target = sessionThread.getWorkingDir();
+			} else {
+				target = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
+			}
+			if(violatesChroot(target)) {
+				errString = "550 MLST target violates chroot\r\n";
+				break mainblock;
+			}
+			File parent = target.getParentFile();
+			boolean writable = parent != null && parent.canWrite();
+			facts = new MlsxFormatter(writable).facts(target);
+			if(facts == null) {
+				errString = "550 No such file or directory\r\n";
+				break mainblock;
+			}
+			try {
+				// Give the path as the client sees it, inside the chroot
+				path = target.getCanonicalPath().substring(
+						Globals.getChrootDir().getCanonicalPath().length());
+			} catch (IOException e) {
+				errString = "550 MLST path error\r\n";
+				break mainblock;
+			}
+			if(path.length() == 0) {
+				path = "/";
+			}
+		}
+		if(errString != null) {
+			sessionThread.writeString(errString);
+		} else {
+			sessionThread.writeString("250-Listing " + path + "\r\n");
+			sessionThread.writeString(" " + facts + " " + path + "\r\n");
+			sessionThread.writeString("250 End\r\n");
+		}
+		myLog.l(Log.DEBUG, "MLST complete");
+	}
+}
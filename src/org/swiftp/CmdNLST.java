@@ -32,7 +32,7 @@ import android.util.Log;
 
 public class CmdNLST extends CmdAbstractListing implements Runnable {
 	// The approximate number of milliseconds in 6 months
-	public final static long MS_IN_SIX_MONTHS = 6 * 30 * 24 * 60 * 60 * 1000; 
+	public final static long MS_IN_SIX_MONTHS = 6L * 30 * 24 * 60 * 60 * 1000;
 	private String input;
 	
 	
@@ -70,22 +70,16 @@ public class CmdNLST extends CmdAbstractListing implements Runnable {
 					break mainblock;
 				}				
 			}
-			String listing;
 			if(fileToList.isDirectory()) {
-				StringBuilder response = new StringBuilder();
-				errString = listDirectory(response, fileToList);
-				if(errString != null) {
-					break mainblock;
-				}
-				listing = response.toString();
+				errString = sendDirectoryListing(fileToList);
 			} else {
-				listing = makeLsString(fileToList);
+				String listing = makeLsString(fileToList);
 				if(listing == null) {
 					errString = "450 Couldn't list that file\r\n";
 					break mainblock;
 				}
+				errString = sendListing(listing);
 			}
-			errString = sendListing(listing);
 			if(errString != null) {
 				break mainblock;
 			}
@@ -57,6 +57,11 @@ public class CmdOPTS extends FtpCmd implements Runnable {
 					myLog.i("Ignoring OPTS UTF8 for something besides ON");
 				}
 				break mainBlock;
+			} else if(optName.equals("MLST")) {
+				// We always send every fact we support, whatever the client
+				// asks for, which RFC 3659 permits
+				myLog.d("Got OPTS MLST " + optVal);
+				break mainBlock;
 			} else {
 				myLog.d("Unrecognized OPTS option: " + optName);
 				errString = "502 Unrecognized option\r\n";
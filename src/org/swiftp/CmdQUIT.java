@@ -31,7 +31,7 @@ public class CmdQUIT extends FtpCmd implements Runnable {
 	public void run() {
 		myLog.l(Log.DEBUG, "QUITting");
 		sessionThread.writeString("221 Goodbye\r\n");
-		sessionThread.closeSocket();
+		sessionThread.quit();
 	}
 
 }
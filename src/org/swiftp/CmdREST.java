@@ -0,0 +1,51 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import android.util.Log;
+
+public class CmdREST extends FtpCmd implements Runnable {
+	protected String input;
+	
+	public CmdREST(SessionThread sessionThread, String input) {
+		super(sessionThread, CmdREST.class.toString());
+		this.input = input;
+	}
+	
+	public void run() {
+		myLog.l(Log.DEBUG, "REST executing");
+		String param = getParameter(input);
+		long offset;
+		try {
+			offset = Long.parseLong(param);
+		} catch (NumberFormatException e) {
+			offset = -1;
+		}
+		if(offset < 0) {
+			sessionThread.writeString("501 REST requires a non-negative byte offset\r\n");
+			return;
+		}
+		// The offset applies to the next RETR, STOR or APPE only
+		sessionThread.setRestartOffset(offset);
+		sessionThread.writeString("350 Restarting at " + offset + 
+				". Send RETR or STOR to continue\r\n");
+		myLog.l(Log.DEBUG, "REST complete");
+	}
+}
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import android.util.Log;
 
@@ -40,6 +41,7 @@ public class CmdRETR extends FtpCmd implements Runnable {
 		String param = getParameter(input);
 		File fileToRetr;
 		String errString = null;
+		long offset = sessionThread.consumeRestartOffset();
 		
 		mainblock: {
 			fileToRetr = inputPathToChrootedFile(sessionThread.getWorkingDir(), param);
@@ -59,15 +61,19 @@ public class CmdRETR extends FtpCmd implements Runnable {
 				myLog.l(Log.INFO, "Failed RETR permission (canRead() is false)");
 				errString = "550 No read permissions\r\n";
 				break mainblock;
+			} else if(offset > fileToRetr.length()) {
+				myLog.l(Log.INFO, "RETR restart offset is past end of file");
+				errString = "554 Invalid REST parameter\r\n";
+				break mainblock;
 			} /*else if(!sessionThread.isBinaryMode()) {
 				myLog.l(Log.INFO, "Failed RETR in text mode");
 				errString = "550 Text mode RETR not supported\r\n";
 				break mainblock;
 			}*/
+			FileInputStream in = null;
 			try {
-				FileInputStream in = new FileInputStream(fileToRetr);
-				byte[] buffer = new byte[Defaults.getDataChunkSize()];
-				int bytesRead;
+				in = new FileInputStream(fileToRetr);
+				FileChannel channel = in.getChannel();
 				if(sessionThread.startUsingDataSocket()) {
 					myLog.l(Log.DEBUG, "RETR opened data socket");
 				} else {
@@ -75,7 +81,28 @@ public class CmdRETR extends FtpCmd implements Runnable {
 					myLog.l(Log.INFO, "Error in initDataSocket()");
 					break mainblock;
 				}
+				if(offset > 0) {
+					myLog.l(Log.DEBUG, "RETR restarting at offset " + offset);
+				}
 				sessionThread.writeString("150 Sending file\r\n");
+				if(sessionThread.isBinaryMode() 
+						&& sessionThread.isZeroCopyAvailable()) 
+				{
+					myLog.l(Log.DEBUG, "Transferring in binary mode, zero-copy");
+					if(sessionThread.sendFileViaDataSocket(channel, offset, 
+							channel.size() - offset) < 0) 
+					{
+						errString = "426 Data socket error\r\n";
+						myLog.l(Log.INFO, "Data socket error");
+						break mainblock;
+					}
+					break mainblock; // sent everything, skip the buffered loops
+				}
+				// Proxied sockets and ASCII mode go through a user space buffer.
+				// Moving the channel position also moves the stream's.
+				channel.position(offset);
+				byte[] buffer = new byte[Defaults.getDataChunkSize()];
+				int bytesRead;
 				if(sessionThread.isBinaryMode()) {
 					myLog.l(Log.DEBUG, "Transferring in binary mode");
 					while((bytesRead = in.read(buffer)) != -1) {
@@ -135,6 +162,12 @@ public class CmdRETR extends FtpCmd implements Runnable {
 			} catch(IOException e) {
 				errString = "425 Network error\r\n";
 				break mainblock;
+			} finally {
+				if(in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {}
+				}
 			}
 		}
 		sessionThread.closeDataSocket();
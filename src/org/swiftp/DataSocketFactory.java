@@ -54,5 +54,15 @@ abstract public class DataSocketFactory {
 	 * @param numBytes the number of bytes to add to the total
 	 */
 	abstract public void reportTraffic(long numBytes);
+	
+	/**
+	 * Whether the sockets returned by onTransfer() are backed by a
+	 * SocketChannel connected straight to the client, so that file contents
+	 * can be sent with FileChannel.transferTo() instead of being copied
+	 * through a user space buffer. Factories whose data has to pass through
+	 * an intermediary (such as the proxy) should leave this false.
+	 */
+	public boolean supportsZeroCopy() {
+		return false;
+	}
 }
-
@@ -32,6 +32,13 @@ public class Defaults {
 	 * */
 	protected static int dataChunkSize = 65536;  // do file I/O in 64k chunks 
 	protected static int sessionMonitorScrollBack = 10;
+	protected static int maxSessions = 5; // concurrent control connections
+	protected static int sessionIdleTimeoutMs = 300000; // drop idle sessions after 5 min
+	// Serve control connections from one selector thread (NioTcpListener)
+	// instead of one pooled thread per session (TcpListener)
+	protected static boolean nioControlEngine = false;
+	protected static int nioWorkerThreads = 4; // threads running commands
+	protected static int maxNioSessions = 256;
 	protected static int serverLogScrollBack = 10;
 	/**
 	 * UI care的Log等级
@@ -153,6 +160,46 @@ public class Defaults {
 		Defaults.serverLogScrollBack = serverLogScrollBack;
 	}
 
+	public static int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public static void setMaxSessions(int maxSessions) {
+		Defaults.maxSessions = maxSessions;
+	}
+
+	public static int getSessionIdleTimeoutMs() {
+		return sessionIdleTimeoutMs;
+	}
+
+	public static void setSessionIdleTimeoutMs(int sessionIdleTimeoutMs) {
+		Defaults.sessionIdleTimeoutMs = sessionIdleTimeoutMs;
+	}
+
+	public static boolean isNioControlEngine() {
+		return nioControlEngine;
+	}
+
+	public static void setNioControlEngine(boolean nioControlEngine) {
+		Defaults.nioControlEngine = nioControlEngine;
+	}
+
+	public static int getNioWorkerThreads() {
+		return nioWorkerThreads;
+	}
+
+	public static void setNioWorkerThreads(int nioWorkerThreads) {
+		Defaults.nioWorkerThreads = nioWorkerThreads;
+	}
+
+	public static int getMaxNioSessions() {
+		return maxNioSessions;
+	}
+
+	public static void setMaxNioSessions(int maxNioSessions) {
+		Defaults.maxNioSessions = maxNioSessions;
+	}
+
 	public static int getConsoleLogLevel() {
 		return consoleLogLevel;
 	}
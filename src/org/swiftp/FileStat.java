@@ -0,0 +1,52 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+
+/**
+ * The attributes listings need from a file, fetched with as few stat()
+ * calls as this platform allows. Android (API 14) has no readAttributes()
+ * or public stat(), so lastModified() doubles as the existence check, and
+ * length() is skipped for directories, whose size clients ignore. A
+ * directory entry costs two stats and a file three, instead of the four
+ * that separate exists/isDirectory/length/lastModified calls take.
+ * 
+ * One instance is meant to be reused for every entry of a listing.
+ */
+public class FileStat {
+	public boolean isDirectory;
+	public long size;
+	public long lastModified;
+	
+	/**
+	 * Reads the attributes of file into this object.
+	 * @return false if the file doesn't exist
+	 */
+	public boolean load(File file) {
+		lastModified = file.lastModified();
+		isDirectory = file.isDirectory();
+		if(lastModified == 0 && !isDirectory && !file.exists()) {
+			return false;
+		}
+		size = isDirectory ? 0 : file.length();
+		return true;
+	}
+}
@@ -83,6 +83,12 @@ public abstract class FtpCmd implements Runnable {
 			return new CmdCDUP(sessionThread, input);
 		if ("APPE".equals(cmd))
 			return new CmdAPPE(sessionThread, input);
+		if ("REST".equals(cmd))
+			return new CmdREST(sessionThread, input);
+		if ("MLSD".equals(cmd))
+			return new CmdMLSD(sessionThread, input);
+		if ("MLST".equals(cmd))
+			return new CmdMLST(sessionThread, input);
 		if ("XCUP".equals(cmd))
 			return new CmdCDUP(sessionThread, input); // synonym
 		if ("XPWD".equals(cmd))
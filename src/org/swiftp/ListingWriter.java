@@ -0,0 +1,121 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+
+/**
+ * Streams a directory listing over the session's data socket. Each line is
+ * encoded into one reusable byte buffer, which goes out whenever it fills
+ * up, so a listing never has to exist in memory as a whole, and the client
+ * starts receiving it as soon as the first chunk is ready.
+ */
+public class ListingWriter {
+	private final SessionThread sessionThread;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer chunk;
+	// Reused to hand names to the encoder without wrapping each one
+	private CharBuffer nameChars = CharBuffer.allocate(256);
+	private boolean failed = false;
+	
+	public ListingWriter(SessionThread sessionThread, int chunkSize) {
+		this.sessionThread = sessionThread;
+		this.encoder = SessionThread.newEncoder(sessionThread.getEncoding());
+		this.chunk = ByteBuffer.allocate(chunkSize);
+	}
+	
+	/**
+	 * Adds text to the listing, such as a whole line (including its \r\n)
+	 * or just a file name. Nothing is allocated per call.
+	 * @return false if the data socket has failed
+	 */
+	public boolean write(String text) {
+		if(failed) {
+			return false;
+		}
+		int len = text.length();
+		if(nameChars.capacity() < len) {
+			nameChars = CharBuffer.allocate(Math.max(len, nameChars.capacity() * 2));
+		}
+		nameChars.clear();
+		text.getChars(0, len, nameChars.array(), 0);
+		nameChars.limit(len);
+		return encode(nameChars);
+	}
+	
+	/**
+	 * Adds bytes that are already encoded, e.g. the ASCII columns of an ls
+	 * line, straight to the buffer.
+	 * @return false if the data socket has failed
+	 */
+	public boolean write(byte[] bytes, int offset, int len) {
+		if(failed) {
+			return false;
+		}
+		while(len > 0) {
+			if(!chunk.hasRemaining() && !sendChunk()) {
+				return false;
+			}
+			int n = Math.min(len, chunk.remaining());
+			chunk.put(bytes, offset, n);
+			offset += n;
+			len -= n;
+		}
+		return true;
+	}
+	
+	private boolean encode(CharBuffer chars) {
+		encoder.reset();
+		while(encoder.encode(chars, chunk, true).isOverflow()) {
+			if(!sendChunk()) {
+				return false;
+			}
+		}
+		while(encoder.flush(chunk).isOverflow()) {
+			if(!sendChunk()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Sends whatever is left in the buffer. Call once the listing is done.
+	 * @return false if the data socket has failed
+	 */
+	public boolean flush() {
+		if(failed) {
+			return false;
+		}
+		return sendChunk();
+	}
+	
+	private boolean sendChunk() {
+		if(chunk.position() > 0) {
+			if(!sessionThread.sendViaDataSocket(chunk.array(), chunk.position())) {
+				failed = true;
+			}
+			chunk.clear();
+		}
+		return !failed;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * Formats /bin/ls style lines for LIST without allocating per entry. The
+ * fixed-width columns are written as ASCII into one reused byte array
+ * using lookup tables for month names and digits, and a single Calendar
+ * is reused for the date fields. Only the file name goes through the
+ * charset encoder.
+ * 
+ * See Daniel Bernstein's explanation of /bin/ls format at:
+ * http://cr.yp.to/ftp/list/binls.html
+ */
+public class LsFormatter {
+	// The approximate number of milliseconds in 6 months
+	public static final long MS_IN_SIX_MONTHS = 6L * 30 * 24 * 60 * 60 * 1000;
+	
+	private static final byte[] DIR_PERMS = ascii("drwxr-xr-x 1 owner group");
+	private static final byte[] FILE_PERMS = ascii("-rw-r--r-- 1 owner group");
+	private static final byte[][] MONTHS = {
+		ascii("Jan"), ascii("Feb"), ascii("Mar"), ascii("Apr"),
+		ascii("May"), ascii("Jun"), ascii("Jul"), ascii("Aug"),
+		ascii("Sep"), ascii("Oct"), ascii("Nov"), ascii("Dec")
+	};
+	static final byte[] CRLF = ascii("\r\n");
+	// Tens and ones digits of 0..99, also used by MlsxFormatter
+	static final byte[] TENS = new byte[100];
+	static final byte[] ONES = new byte[100];
+	static {
+		for(int i = 0; i < 100; i++) {
+			TENS[i] = (byte)('0' + i / 10);
+			ONES[i] = (byte)('0' + i % 10);
+		}
+	}
+	// Width of the right-justified, space-padded size column
+	private static final int SIZE_WIDTH = 13;
+	
+	// Long enough for the permissions, size and date columns
+	private final byte[] line = new byte[64];
+	private final Calendar calendar = Calendar.getInstance();
+	private final FileStat stat = new FileStat();
+	private final long now = System.currentTimeMillis();
+	
+	/**
+	 * Appends the ls line for file to writer. Files that have disappeared
+	 * or have names clients can't handle are skipped.
+	 * @return false if the data socket has failed
+	 */
+	public boolean write(ListingWriter writer, File file) {
+		String name = file.getName();
+		if(!isListable(name)) {
+			return true;
+		}
+		int len = formatColumns(file);
+		if(len < 0) {
+			return true;
+		}
+		return writer.write(line, 0, len) 
+			&& writer.write(name) 
+			&& writer.write(CRLF, 0, CRLF.length);
+	}
+	
+	/**
+	 * Returns the ls line for a single file, or null if it can't be listed.
+	 */
+	public String format(File file) {
+		String name = file.getName();
+		if(!isListable(name)) {
+			return null;
+		}
+		int len = formatColumns(file);
+		if(len < 0) {
+			return null;
+		}
+		StringBuilder response = new StringBuilder(len + name.length() + 2);
+		for(int i = 0; i < len; i++) {
+			response.append((char)line[i]);
+		}
+		return response.append(name).append("\r\n").toString();
+	}
+	
+	private static boolean isListable(String name) {
+		// Many clients can't handle files containing these symbols
+		return name.indexOf('*') == -1 && name.indexOf('/') == -1;
+	}
+	
+	/**
+	 * Writes everything up to the file name into line.
+	 * @return The number of bytes written, or -1 if the file doesn't exist
+	 */
+	private int formatColumns(File file) {
+		if(!stat.load(file)) {
+			return -1;
+		}
+		boolean isDir = stat.isDirectory;
+		long size = stat.size;
+		long mTime = stat.lastModified;
+		
+		byte[] perms = isDir ? DIR_PERMS : FILE_PERMS;
+		System.arraycopy(perms, 0, line, 0, perms.length);
+		int pos = perms.length;
+		
+		// Size, right-justified
+		int end = pos + SIZE_WIDTH;
+		int digit = end;
+		do {
+			line[--digit] = (byte)('0' + (size % 10));
+			size /= 10;
+		} while(size > 0 && digit > pos);
+		while(digit > pos) {
+			line[--digit] = ' ';
+		}
+		pos = end;
+		
+		// The format of the timestamp varies depending on whether the mtime
+		// is within the last 6 months
+		calendar.setTimeInMillis(mTime);
+		line[pos++] = ' ';
+		byte[] month = MONTHS[calendar.get(Calendar.MONTH)];
+		System.arraycopy(month, 0, line, pos, 3);
+		pos += 3;
+		line[pos++] = ' ';
+		int day = calendar.get(Calendar.DAY_OF_MONTH);
+		line[pos++] = TENS[day];
+		line[pos++] = ONES[day];
+		line[pos++] = ' ';
+		long age = now - mTime;
+		if(age < 0 || age > MS_IN_SIX_MONTHS) {
+			// Old or in the future: show the year
+			int year = calendar.get(Calendar.YEAR);
+			line[pos++] = ' ';
+			line[pos++] = TENS[(year / 100) % 100];
+			line[pos++] = ONES[(year / 100) % 100];
+			line[pos++] = TENS[year % 100];
+			line[pos++] = ONES[year % 100];
+		} else {
+			int hour = calendar.get(Calendar.HOUR_OF_DAY);
+			int minute = calendar.get(Calendar.MINUTE);
+			line[pos++] = TENS[hour];
+			line[pos++] = ONES[hour];
+			line[pos++] = ':';
+			line[pos++] = TENS[minute];
+			line[pos++] = ONES[minute];
+		}
+		line[pos++] = ' ';
+		return pos;
+	}
+	
+	static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)s.charAt(i);
+		}
+		return bytes;
+	}
+}
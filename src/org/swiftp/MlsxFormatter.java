@@ -0,0 +1,153 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Formats the machine-readable fact lines of MLSD and MLST (RFC 3659):
+ * "type=file;size=123;modify=20110101120000;perm=adfrw; name". Like
+ * LsFormatter, it fills one reused byte array from a single FileStat per
+ * entry, so no objects are created per entry.
+ * 
+ * We don't know the owner or mode of files on the SD card, so the perm
+ * fact is derived once from whether the listed directory is writable.
+ */
+public class MlsxFormatter {
+	// The facts we always send, as advertised by FEAT
+	public static final String FACTS = "type*;size*;modify*;perm*;";
+	
+	private static final byte[] TYPE_DIR = LsFormatter.ascii("type=dir;");
+	private static final byte[] TYPE_FILE = LsFormatter.ascii("type=file;");
+	private static final byte[] SIZE = LsFormatter.ascii("size=");
+	private static final byte[] MODIFY = LsFormatter.ascii("modify=");
+	private static final byte[] DIR_PERM_RW = LsFormatter.ascii("perm=cdeflmp;");
+	private static final byte[] DIR_PERM_RO = LsFormatter.ascii("perm=el;");
+	private static final byte[] FILE_PERM_RW = LsFormatter.ascii("perm=adfrw;");
+	private static final byte[] FILE_PERM_RO = LsFormatter.ascii("perm=r;");
+	
+	// Long enough for all the facts
+	private final byte[] line = new byte[96];
+	private final byte[] digits = new byte[20];
+	// Modification times are always given in UTC
+	private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	private final FileStat stat = new FileStat();
+	private final boolean writable;
+	
+	/**
+	 * @param writable Whether the client may modify the listed entries
+	 */
+	public MlsxFormatter(boolean writable) {
+		this.writable = writable;
+	}
+	
+	/**
+	 * Appends the MLSD line for file to writer. Files that have disappeared
+	 * are skipped.
+	 * @return false if the data socket has failed
+	 */
+	public boolean write(ListingWriter writer, File file) {
+		String name = file.getName();
+		// A name containing a line break would corrupt the listing
+		if(name.indexOf('\n') != -1 || name.indexOf('\r') != -1) {
+			return true;
+		}
+		int len = formatFacts(file);
+		if(len < 0) {
+			return true;
+		}
+		line[len++] = ' ';
+		return writer.write(line, 0, len) 
+			&& writer.write(name) 
+			&& writer.write(LsFormatter.CRLF, 0, LsFormatter.CRLF.length);
+	}
+	
+	/**
+	 * Returns the facts of file, ending with ';', or null if it doesn't
+	 * exist. Used by MLST, which sends them over the control connection.
+	 */
+	public String facts(File file) {
+		int len = formatFacts(file);
+		if(len < 0) {
+			return null;
+		}
+		StringBuilder response = new StringBuilder(len);
+		for(int i = 0; i < len; i++) {
+			response.append((char)line[i]);
+		}
+		return response.toString();
+	}
+	
+	private int formatFacts(File file) {
+		if(!stat.load(file)) {
+			return -1;
+		}
+		int pos = 0;
+		if(stat.isDirectory) {
+			pos = put(TYPE_DIR, pos);
+		} else {
+			pos = put(TYPE_FILE, pos);
+			pos = put(SIZE, pos);
+			long size = stat.size;
+			int numDigits = 0;
+			do {
+				digits[numDigits++] = (byte)('0' + (size % 10));
+				size /= 10;
+			} while(size > 0);
+			while(numDigits > 0) {
+				line[pos++] = digits[--numDigits];
+			}
+			line[pos++] = ';';
+		}
+		
+		// modify=YYYYMMDDHHMMSS;
+		calendar.setTimeInMillis(stat.lastModified);
+		pos = put(MODIFY, pos);
+		int year = calendar.get(Calendar.YEAR);
+		pos = putTwoDigits((year / 100) % 100, pos);
+		pos = putTwoDigits(year % 100, pos);
+		pos = putTwoDigits(calendar.get(Calendar.MONTH) + 1, pos);
+		pos = putTwoDigits(calendar.get(Calendar.DAY_OF_MONTH), pos);
+		pos = putTwoDigits(calendar.get(Calendar.HOUR_OF_DAY), pos);
+		pos = putTwoDigits(calendar.get(Calendar.MINUTE), pos);
+		pos = putTwoDigits(calendar.get(Calendar.SECOND), pos);
+		line[pos++] = ';';
+		
+		if(stat.isDirectory) {
+			pos = put(writable ? DIR_PERM_RW : DIR_PERM_RO, pos);
+		} else {
+			pos = put(writable ? FILE_PERM_RW : FILE_PERM_RO, pos);
+		}
+		return pos;
+	}
+	
+	private int put(byte[] bytes, int pos) {
+		System.arraycopy(bytes, 0, line, pos, bytes.length);
+		return pos + bytes.length;
+	}
+	
+	private int putTwoDigits(int value, int pos) {
+		line[pos++] = LsFormatter.TENS[value];
+		line[pos++] = LsFormatter.ONES[value];
+		return pos;
+	}
+}
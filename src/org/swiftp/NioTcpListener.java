@@ -0,0 +1,414 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import net.micode.fileexplorer.FTPServerService;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * An alternative to TcpListener that serves every control connection from
+ * a single Selector thread instead of parking one thread per session in
+ * BufferedReader.readLine(). Incoming bytes are collected in each session's
+ * ByteBuffer until a complete line has arrived, and only then is the
+ * command handed to a small worker pool, which runs it through
+ * FtpCmd.dispatchCommand() exactly like SessionThread.run() would. While a
+ * command runs, its session is not read from, so commands of one session
+ * still execute in order. Idle sessions cost a buffer and a SelectionKey,
+ * not a thread. Commands that open a data connection (RETR, STOR, LIST...)
+ * block for as long as the transfer runs, so they are handed to a separate
+ * pool with a thread per active transfer, and never hold up the workers
+ * that serve the other sessions' short commands.
+ */
+public class NioTcpListener extends TcpListener {
+	// How often the selector wakes up to look for idle sessions
+	protected static final int SELECT_TIMEOUT_MS = 1000;
+	// No command line may grow the input buffer beyond this
+	protected static final int MAX_COMMAND_LENGTH = 8192;
+	protected static final int WORKER_KEEPALIVE_SECONDS = 30;
+	// Commands that block on the data connection for the whole transfer
+	protected static final String[] DATA_TRANSFER_VERBS = {
+		"RETR", "STOR", "APPE", "LIST", "NLST", "MLSD"
+	};
+	
+	private Selector selector;
+	private ThreadPoolExecutor workers;
+	// Runs data transfer commands; a session has at most one in flight
+	private ThreadPoolExecutor transfers;
+	// Sessions whose command has finished and which want to be read again.
+	// Interest ops are only changed on the selector thread.
+	private final ConcurrentLinkedQueue<SelectionKey> rearmQueue = 
+		new ConcurrentLinkedQueue<SelectionKey>();
+	private volatile boolean shouldExit = false;
+	
+	/**
+	 * Per-connection state, attached to the connection's SelectionKey.
+	 */
+	static class Connection {
+		final SessionThread session;
+		// How far into session.buffer we've already looked for a newline
+		int scanned = 0;
+		// Set after an overlong line until its terminating newline arrives
+		boolean discarding = false;
+		// True while a worker is running this session's commands
+		boolean busy = false;
+		volatile long lastActivity = System.currentTimeMillis();
+		
+		Connection(SessionThread session) {
+			this.session = session;
+		}
+	}
+	
+	public NioTcpListener(ServerSocket listenSocket, FTPServerService ftpServerService) {
+		super(listenSocket, ftpServerService);
+	}
+	
+	public void quit() {
+		shouldExit = true;
+		super.quit();
+		Selector s = selector;
+		if(s != null) {
+			s.wakeup();
+		}
+	}
+	
+	public void run() {
+		ServerSocketChannel server = listenSocket.getChannel();
+		if(server == null) {
+			myLog.l(Log.ERROR, "NioTcpListener needs a channel-backed listen socket");
+			return;
+		}
+		int numWorkers = Defaults.getNioWorkerThreads();
+		workers = new ThreadPoolExecutor(numWorkers, numWorkers,
+				WORKER_KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		workers.allowCoreThreadTimeOut(true);
+		transfers = new ThreadPoolExecutor(0, Defaults.getMaxNioSessions(),
+				WORKER_KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>());
+		try {
+			selector = Selector.open();
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			while(!shouldExit) {
+				selector.select(SELECT_TIMEOUT_MS);
+				rearmFinishedSessions();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) {
+						continue;
+					}
+					try {
+						if(key.isAcceptable()) {
+							accept(server);
+						} else if(key.isReadable()) {
+							read(key);
+						}
+					} catch (RuntimeException e) {
+						// A single broken connection must not stop the listener
+						myLog.l(Log.INFO, "Exception serving connection: " + e);
+						if(key.attachment() instanceof Connection) {
+							closeSession(key);
+						}
+					}
+				}
+				reapIdleSessions();
+			}
+		} catch (Exception e) {
+			myLog.l(Log.DEBUG, "Exception in NioTcpListener: " + e);
+		} finally {
+			closeAllSessions();
+			workers.shutdown();
+			transfers.shutdown();
+			try {
+				if(selector != null) {
+					selector.close();
+				}
+			} catch (IOException e) {}
+		}
+	}
+	
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if(channel == null) {
+			return;
+		}
+		SessionThread session = new SessionThread(channel.socket(),
+				new NormalDataSocketFactory(), SessionThread.Source.LOCAL);
+		// One key belongs to the listening socket
+		if(selector.keys().size() - 1 >= Defaults.getMaxNioSessions()) {
+			// The channel is still blocking, so this is a plain stream write
+			myLog.l(Log.INFO, "Session limit reached, refusing connection");
+			session.writeString("421 Too many connections, try again later\r\n");
+			session.closeSocket();
+			return;
+		}
+		myLog.l(Log.INFO, "New connection, registered with selector");
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(session));
+		session.greet();
+	}
+	
+	private void read(SelectionKey key) {
+		Connection conn = (Connection)key.attachment();
+		SocketChannel channel = (SocketChannel)key.channel();
+		int numRead;
+		try {
+			numRead = channel.read(conn.session.buffer);
+		} catch (IOException e) {
+			numRead = -1;
+		}
+		if(numRead < 0) {
+			myLog.l(Log.INFO, "Connection was dropped");
+			closeSession(key);
+			return;
+		}
+		conn.lastActivity = System.currentTimeMillis();
+		final String firstLine = nextLine(conn);
+		if(firstLine == null) {
+			return; // wait for the rest of the line
+		}
+		// Stop reading this session until its commands have run
+		key.interestOps(0);
+		conn.busy = true;
+		submitCommands(key, conn, firstLine);
+	}
+	
+	/**
+	 * Runs the session's commands starting with line, on the transfer pool
+	 * if line opens a data connection and on the worker pool otherwise.
+	 * A transfer that finds no free thread is refused with a 425 reply and
+	 * the session carries on with its next command.
+	 */
+	private void submitCommands(final SelectionKey key, final Connection conn,
+			final String line) {
+		final boolean transfer = isDataTransfer(line);
+		try {
+			(transfer ? transfers : workers).execute(new Runnable() {
+				public void run() {
+					runCommands(key, conn, line, transfer);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if(!transfer || shouldExit) {
+				// The pools only refuse short commands while shutting down
+				myLog.l(Log.INFO, "Server shutting down, closing session");
+				conn.session.writeString(
+						"421 Service not available, closing control connection\r\n");
+				conn.session.closeSocket();
+				return;
+			}
+			myLog.l(Log.INFO, "No thread free for a transfer, refusing it");
+			conn.session.closeDataSocket();
+			conn.session.writeString(
+					"425 Too many transfers in progress, try again later\r\n");
+			String next = nextLine(conn);
+			if(next != null) {
+				submitCommands(key, conn, next);
+			} else {
+				conn.lastActivity = System.currentTimeMillis();
+				rearmQueue.add(key);
+				selector.wakeup();
+			}
+		}
+	}
+	
+	/**
+	 * Dispatches line and then any further complete lines the client
+	 * pipelined behind it, then asks the selector thread to start reading
+	 * the session again. A worker thread gives the rest of the session's
+	 * lines to the transfer pool as soon as it reaches a data transfer.
+	 */
+	private void runCommands(SelectionKey key, Connection conn, String line,
+			boolean onTransferThread) {
+		try {
+			// Answer all pipelined commands with one write
+			conn.session.holdReplies(true);
+			while(line != null) {
+				if(!onTransferThread && isDataTransfer(line)) {
+					// Send what is held now; the transfer may take a while
+					conn.session.holdReplies(false);
+					submitCommands(key, conn, line);
+					return;
+				}
+				FTPServerService.writeMonitor(true, line);
+				myLog.l(Log.DEBUG, "Received line from client: " + line);
+				FtpCmd.dispatchCommand(conn.session, line);
+				if(!key.channel().isOpen()) {
+					return; // QUIT or a failed write closed the session
+				}
+				line = nextLine(conn);
+			}
+			conn.session.holdReplies(false);
+		} catch (RuntimeException e) {
+			myLog.l(Log.INFO, "Exception running command: " + e);
+			conn.session.closeSocket();
+			return;
+		}
+		conn.lastActivity = System.currentTimeMillis();
+		rearmQueue.add(key);
+		selector.wakeup();
+	}
+	
+	private static boolean isDataTransfer(String line) {
+		int space = line.indexOf(' ');
+		String verb = (space < 0 ? line : line.substring(0, space)).trim();
+		for(String transferVerb : DATA_TRANSFER_VERBS) {
+			if(transferVerb.equalsIgnoreCase(verb)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void rearmFinishedSessions() {
+		SelectionKey key;
+		while((key = rearmQueue.poll()) != null) {
+			Connection conn = (Connection)key.attachment();
+			conn.busy = false;
+			if(key.isValid()) {
+				try {
+					key.interestOps(SelectionKey.OP_READ);
+				} catch (RuntimeException e) {
+					// e.g. CancelledKeyException if closed after isValid()
+					myLog.l(Log.INFO, "Exception rearming session: " + e);
+					closeSession(key);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Takes the next complete line out of the connection's buffer, which is
+	 * kept in "put" mode. Returns null if no full line has arrived yet.
+	 * Lines end in \n, and a preceding \r is dropped, like readLine().
+	 */
+	private String nextLine(Connection conn) {
+		while(true) {
+			ByteBuffer buf = conn.session.buffer;
+			byte[] bytes = buf.array();
+			int end = buf.position();
+			int newline = -1;
+			for(int i = conn.scanned; i < end; i++) {
+				if(bytes[i] == '\n') {
+					newline = i;
+					break;
+				}
+			}
+			if(newline == -1) {
+				conn.scanned = end;
+				if(!buf.hasRemaining()) {
+					growOrDiscard(conn);
+				}
+				return null;
+			}
+			int lineEnd = newline;
+			if(lineEnd > 0 && bytes[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+			String line = new String(bytes, 0, lineEnd, Charset.defaultCharset());
+			buf.flip();
+			buf.position(newline + 1);
+			buf.compact();
+			conn.scanned = 0;
+			if(conn.discarding) {
+				// This was the tail end of an overlong line
+				conn.discarding = false;
+				continue;
+			}
+			return line;
+		}
+	}
+	
+	private void growOrDiscard(Connection conn) {
+		ByteBuffer buf = conn.session.buffer;
+		if(buf.capacity() < MAX_COMMAND_LENGTH) {
+			ByteBuffer bigger = ByteBuffer.allocate(
+					Math.min(buf.capacity() * 2, MAX_COMMAND_LENGTH));
+			buf.flip();
+			bigger.put(buf);
+			conn.session.buffer = bigger;
+		} else {
+			myLog.l(Log.INFO, "Command line too long, discarding");
+			if(!conn.discarding) {
+				conn.session.writeString("500 Command line too long\r\n");
+			}
+			conn.discarding = true;
+			buf.clear();
+			conn.scanned = 0;
+		}
+	}
+	
+	private void reapIdleSessions() {
+		long now = System.currentTimeMillis();
+		int timeout = Defaults.getSessionIdleTimeoutMs();
+		for(SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if(!(attachment instanceof Connection)) {
+				continue;
+			}
+			Connection conn = (Connection)attachment;
+			if(!key.channel().isOpen()) {
+				key.cancel();
+			} else if(!conn.busy && now - conn.lastActivity > timeout) {
+				myLog.l(Log.INFO, "Session idle too long, closing");
+				conn.session.writeString(
+						"421 Idle timeout, closing control connection\r\n");
+				closeSession(key);
+			}
+		}
+	}
+	
+	private void closeSession(SelectionKey key) {
+		key.cancel();
+		Connection conn = (Connection)key.attachment();
+		conn.session.closeDataSocket();
+		conn.session.closeSocket();
+	}
+	
+	private void closeAllSessions() {
+		if(selector == null || !selector.isOpen()) {
+			return;
+		}
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment() instanceof Connection) {
+				closeSession(key);
+			}
+		}
+	}
+}
@@ -23,8 +23,11 @@ import net.micode.fileexplorer.FTPServerService;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import android.util.Log;
 
@@ -69,8 +72,11 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	public int onPasv() {
 		clearState();
 		try {
-			// Listen on any port (port parameter 0)
-			server = new ServerSocket(0, Defaults.tcpConnectionBacklog);
+			// Listen on any port (port parameter 0). The listener is created
+			// through a channel so that accepted sockets have a SocketChannel
+			// that CmdRETR can hand to FileChannel.transferTo().
+			server = ServerSocketChannel.open().socket();
+			server.bind(new InetSocketAddress(0), Defaults.tcpConnectionBacklog);
 			myLog.l(Log.DEBUG, "Data socket pasv() listen successful");
 			return server.getLocalPort();
 		} catch(IOException e) {
@@ -97,7 +103,8 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 			}
 			Socket socket;
 			try {
-				socket = new Socket(remoteAddr, remotePort);
+				socket = SocketChannel.open(
+						new InetSocketAddress(remoteAddr, remotePort)).socket();
 			} catch (IOException e) {
 				myLog.l(Log.INFO, 
 						"Couldn't open PORT data socket to: " +
@@ -152,4 +159,10 @@ public class NormalDataSocketFactory extends DataSocketFactory {
 	public void reportTraffic(long bytes) {
 		// ignore, we don't care about how much traffic goes over wifi.
 	}
+	
+	public boolean supportsZeroCopy() {
+		// Our sockets are direct connections to the client, created through
+		// channels, so the kernel can send file data on them without copying.
+		return true;
+	}
 }
\ No newline at end of file
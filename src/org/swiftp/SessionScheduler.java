@@ -0,0 +1,132 @@
+/*
+Copyright 2009 David Revell
+
+This file is part of SwiFTP.
+
+SwiFTP is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+SwiFTP is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with SwiFTP.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.swiftp;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Runs accepted control connections on a bounded pool of worker threads
+ * instead of starting a new thread per connection. At most maxSessions
+ * sessions are admitted at once; any connection beyond that is told "421"
+ * and closed right away, so the number of threads and session buffers
+ * stays flat however many connections a client opens. Workers that have
+ * nothing to do die off after a while, so an idle server holds no threads.
+ */
+public class SessionScheduler {
+	protected MyLog myLog = new MyLog(getClass().getName());
+	
+	// How long a pooled worker thread may sit unused before it exits
+	protected static final int WORKER_KEEPALIVE_SECONDS = 30;
+	
+	private final int maxSessions;
+	private final ThreadPoolExecutor executor;
+	// Sessions admitted and not yet finished. Guarded by "this".
+	private final Set<SessionThread> activeSessions = new HashSet<SessionThread>();
+	private boolean shutdown = false;
+	
+	public SessionScheduler(int maxSessions) {
+		this.maxSessions = maxSessions;
+		// Admission is decided against activeSessions, so the queue only ever
+		// holds a session for the brief moment a finishing worker needs to
+		// become free again.
+		executor = new ThreadPoolExecutor(maxSessions, maxSessions,
+				WORKER_KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Runs the given session on a pooled worker if there is room for it,
+	 * otherwise replies 421 and closes its control socket.
+	 * @return Whether the session was admitted
+	 */
+	public boolean execute(final SessionThread session) {
+		synchronized(this) {
+			if(shutdown || activeSessions.size() >= maxSessions) {
+				myLog.l(Log.INFO, "Session limit of " + maxSessions + 
+						" reached, refusing connection");
+				reject(session);
+				return false;
+			}
+			activeSessions.add(session);
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						session.run();
+					} finally {
+						session.closeSocket();
+						sessionFinished(session);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Only happens if we were shut down in the meantime
+			sessionFinished(session);
+			reject(session);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Closes every running session and stops accepting new ones. Worker
+	 * threads exit once their session notices its socket has gone away.
+	 */
+	public void shutdown() {
+		SessionThread[] sessions;
+		synchronized(this) {
+			shutdown = true;
+			sessions = activeSessions.toArray(
+					new SessionThread[activeSessions.size()]);
+		}
+		myLog.i("Terminating " + sessions.length + " pooled session(s)");
+		for(SessionThread session : sessions) {
+			session.closeDataSocket();
+			session.closeSocket();
+		}
+		executor.shutdown();
+	}
+	
+	public synchronized int getActiveSessionCount() {
+		return activeSessions.size();
+	}
+	
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+	
+	private synchronized void sessionFinished(SessionThread session) {
+		activeSessions.remove(session);
+	}
+	
+	private void reject(SessionThread session) {
+		session.writeString("421 Too many connections, try again later\r\n");
+		session.closeSocket();
+	}
+}
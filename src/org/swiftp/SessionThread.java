@@ -21,7 +21,6 @@ package org.swiftp;
 
 import net.micode.fileexplorer.FTPServerService;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -31,7 +30,16 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
 import android.util.Log;
 
@@ -39,6 +47,8 @@ public class SessionThread extends Thread {
     protected boolean shouldExit = false;
     protected Socket cmdSocket;
     protected MyLog myLog = new MyLog(getClass().getName());
+    // Holds partially received command lines when the session is driven by
+    // NioTcpListener instead of run()
     protected ByteBuffer buffer = ByteBuffer.allocate(Defaults
             .getInputBufferSize());
     protected boolean pasvMode = false;
@@ -50,17 +60,26 @@ public class SessionThread extends Thread {
     protected Socket dataSocket = null;
     // protected FTPServerService service;
     protected File renameFrom = null;
+    protected long restartOffset = 0; // set by REST, used by the next transfer
     // protected InetAddress outDataDest = null;
     // protected int outDataPort = 20; // 20 is the default ftp-data port
     protected DataSocketFactory dataSocketFactory;
     OutputStream dataOutputStream = null;
     private boolean sendWelcomeBanner;
     protected String encoding = Defaults.SESSION_ENCODING;
+    // Replies to the client are encoded into replyBuffer and written from
+    // there, so nothing is allocated per reply
+    protected ByteBuffer replyBuffer = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+    protected CharsetEncoder replyEncoder = newEncoder(encoding);
+    private boolean holdReplies = false;
+    private OutputStream cmdOutputStream = null;
     protected Source source;
     int authFails = 0;
     
     public enum Source {LOCAL, PROXY}; // where did this connection come from?
     public static int MAX_AUTH_FAILS = 3;
+    // Enough for any ordinary reply; longer ones are sent in pieces
+    public static final int REPLY_BUFFER_SIZE = 1024;
     /**
      * Used when we get a PORT command to open up an outgoing socket.
      * 
@@ -101,6 +120,7 @@ public class SessionThread extends Thread {
      * @return
      */
     public boolean sendViaDataSocket(byte[] bytes, int start, int len) {
+        flushReplies();
 
         if (dataOutputStream == null) {
             myLog.l(Log.INFO, "Can't send via null dataOutputStream");
@@ -120,6 +140,63 @@ public class SessionThread extends Thread {
         return true;
     }
 
+    /**
+     * Whether file contents may be sent with sendFileViaDataSocket(). This
+     * is only the case when the data socket is a direct channel-backed
+     * connection to the client; proxied sockets must use the byte[] path.
+     */
+    public boolean isZeroCopyAvailable() {
+        return dataSocket != null && dataSocket.getChannel() != null
+                && dataSocketFactory.supportsZeroCopy();
+    }
+
+    /**
+     * Sends count bytes of the given file, starting at position, over the
+     * already-established data socket. The bytes are moved by the kernel
+     * with FileChannel.transferTo() and never enter user space.
+     * 
+     * @param source
+     * @param position
+     * @param count
+     * @return The number of bytes sent, or -1 if the data socket failed
+     */
+    public long sendFileViaDataSocket(FileChannel source, long position,
+            long count) {
+        flushReplies();
+        SocketChannel out = dataSocket == null ? null : dataSocket.getChannel();
+        if (out == null) {
+            myLog.l(Log.INFO, "Can't transfer file via null data channel");
+            return -1;
+        }
+        long sent = 0;
+        boolean failed = false;
+        try {
+            while (sent < count) {
+                long n = source.transferTo(position + sent, count - sent, out);
+                if (n <= 0) {
+                    // transferTo() gives 0 once position reaches the end of
+                    // the file, which happens if it shrank while we were
+                    // sending it.
+                    if (position + sent >= source.size()) {
+                        break;
+                    }
+                    continue;
+                }
+                sent += n;
+            }
+        } catch (IOException e) {
+            myLog.l(Log.INFO, "Couldn't transfer file to data socket");
+            myLog.l(Log.INFO, e.toString());
+            failed = true;
+        }
+        // Report once per file rather than once per chunk, including the
+        // part that made it out before a failure
+        if (sent > 0) {
+            dataSocketFactory.reportTraffic(sent);
+        }
+        return failed ? -1 : sent;
+    }
+
     /**
      * Received some bytes from the data socket, which is assumed to already be
      * connected. The bytes are placed in the given array, and the number of
@@ -133,6 +210,7 @@ public class SessionThread extends Thread {
      */
     public int receiveFromDataSocket(byte[] buf) {
         int bytesRead;
+        flushReplies();
 
         if (dataSocket == null) {
             myLog.l(Log.INFO, "Can't receive from null dataSocket");
@@ -201,6 +279,9 @@ public class SessionThread extends Thread {
      * @return
      */
     public boolean startUsingDataSocket() {
+        // The client may be waiting on a held PASV or PORT reply before it
+        // connects
+        flushReplies();
         try {
             dataSocket = dataSocketFactory.onTransfer();
             if (dataSocket == null) {
@@ -218,8 +299,13 @@ public class SessionThread extends Thread {
         }
     }
 
+    /**
+     * Ends the session from within one of its own commands. Replies that are
+     * still being held, such as a final 221 or 530, are sent first.
+     */
     public void quit() {
         myLog.d("SessionThread told to quit");
+        flushReplies();
         closeSocket();
     }
 
@@ -245,15 +331,28 @@ public class SessionThread extends Thread {
         return cmdSocket.getLocalAddress();
     }
 
+    /**
+     * Sends the 220 greeting, if this kind of session gets one.
+     */
+    void greet() {
+        if(sendWelcomeBanner) {
+            writeString("220 SwiFTP " + Util.getVersion() + " ready\r\n");
+        }
+    }
+
     static int numNulls = 0;
     public void run() {
         myLog.l(Log.INFO, "SessionThread started");
         
-        if(sendWelcomeBanner) {
-            writeString("220 SwiFTP " + Util.getVersion() + " ready\r\n");
-        }
+        greet();
         // Main loop: read an incoming line and process it
         try {
+            if (source == Source.LOCAL) {
+                // Reap sessions that sit idle between commands, so they don't
+                // hold one of the scheduler's slots forever. Transfers run
+                // inside dispatchCommand, so they aren't affected.
+                cmdSocket.setSoTimeout(Defaults.getSessionIdleTimeoutMs());
+            }
             BufferedReader in = new BufferedReader(new InputStreamReader(cmdSocket
                     .getInputStream()), 8192); // use 8k buffer
             while (true) {
@@ -262,12 +361,20 @@ public class SessionThread extends Thread {
                 if (line != null) {
                     FTPServerService.writeMonitor(true, line);
                     myLog.l(Log.DEBUG, "Received line from client: " + line);
+                    // Replies go out as soon as each command is done. A
+                    // BufferedReader can't tell whether a whole pipelined line
+                    // is waiting, and holding replies while readLine() blocks
+                    // on a partial one can deadlock; NioTcpListener batches
+                    // replies because it knows where lines end.
                     FtpCmd.dispatchCommand(this, line);
                 } else {
                     myLog.i("readLine gave null, quitting");
                     break;
                 }
             }
+        } catch (SocketTimeoutException e) {
+            myLog.l(Log.INFO, "Session idle too long, closing");
+            writeString("421 Idle timeout, closing control connection\r\n");
         } catch (IOException e) {
             myLog.l(Log.INFO, "Connection was dropped");
         }
@@ -298,36 +405,139 @@ public class SessionThread extends Thread {
 
     /**
      * 通过Socket建立输出流，输出bytes
+     * Queues bytes in the reply buffer and sends them, unless replies are
+     * being held back.
      * */
     public void writeBytes(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!replyBuffer.hasRemaining()) {
+                if (!flushReplies()) {
+                    return;
+                }
+            }
+            int len = Math.min(replyBuffer.remaining(), bytes.length - offset);
+            replyBuffer.put(bytes, offset, len);
+            offset += len;
+        }
+        if (!holdReplies) {
+            flushReplies();
+        }
+    }
+
+    /**
+     * Sends whatever replies are waiting in the reply buffer to the client,
+     * as a single write.
+     * 
+     * @return false if the control socket failed and was closed
+     */
+    public boolean flushReplies() {
+        if (replyBuffer.position() == 0) {
+            return true;
+        }
+        replyBuffer.flip();
+        int len = replyBuffer.remaining();
         try {
-            // TODO: do we really want to do all of this on each write? Why?
-            BufferedOutputStream out = new BufferedOutputStream(cmdSocket
-                    .getOutputStream(), Defaults.dataChunkSize);
-            out.write(bytes);
-            out.flush();
+            SocketChannel channel = cmdSocket.getChannel();
+            if (channel != null && !channel.isBlocking()) {
+                // Sessions driven by NioTcpListener have a non-blocking
+                // channel, whose socket streams can't be used
+                writeToChannel(channel, replyBuffer);
+            } else {
+                if (cmdOutputStream == null) {
+                    cmdOutputStream = cmdSocket.getOutputStream();
+                }
+                cmdOutputStream.write(replyBuffer.array(), 0, len);
+            }
             // 统计传输byte的总长度
-            dataSocketFactory.reportTraffic(bytes.length);
+            dataSocketFactory.reportTraffic(len);
+            return true;
         } catch (IOException e) {
             myLog.l(Log.INFO, "Exception writing socket");
             closeSocket();
-            return;
+            return false;
+        } finally {
+            replyBuffer.clear();
+        }
+    }
+
+    /**
+     * While held, replies collect in the reply buffer instead of being sent
+     * one by one, so that the answers to pipelined commands go out in one
+     * write. Anything that waits on the client, such as opening the data
+     * socket, flushes first. Releasing the hold flushes as well.
+     */
+    public void holdReplies(boolean hold) {
+        holdReplies = hold;
+        if (!hold) {
+            flushReplies();
+        }
+    }
+
+    /**
+     * Writes all of buf to a non-blocking channel. Replies are small, so this
+     * rarely has to wait, but if the client isn't reading we block on a
+     * private selector until there's room or SO_TIMEOUT_MS passes.
+     */
+    private void writeToChannel(SocketChannel channel, ByteBuffer buf)
+            throws IOException {
+        Selector waitSelector = null;
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.write(buf) > 0) {
+                    continue;
+                }
+                if (waitSelector == null) {
+                    waitSelector = Selector.open();
+                    channel.register(waitSelector, SelectionKey.OP_WRITE);
+                }
+                if (waitSelector.select(Defaults.SO_TIMEOUT_MS) == 0) {
+                    throw new IOException("Timed out writing control channel");
+                }
+                waitSelector.selectedKeys().clear();
+            }
+        } finally {
+            if (waitSelector != null) {
+                waitSelector.close();
+            }
         }
     }
 
     /**
      * writeString --> writeBytes
+     * Encodes straight into the reply buffer with the session's cached
+     * encoder, so sending a reply allocates next to nothing.
      * */
     public void writeString(String str) {
         FTPServerService.writeMonitor(false, str);
-        byte[] strBytes;
+        CharBuffer chars = CharBuffer.wrap(str);
+        replyEncoder.reset();
+        while (replyEncoder.encode(chars, replyBuffer, true).isOverflow()) {
+            if (!flushReplies()) {
+                return;
+            }
+        }
+        while (replyEncoder.flush(replyBuffer).isOverflow()) {
+            if (!flushReplies()) {
+                return;
+            }
+        }
+        if (!holdReplies) {
+            flushReplies();
+        }
+    }
+
+    static CharsetEncoder newEncoder(String encoding) {
+        Charset charset;
         try {
-            strBytes = str.getBytes(encoding);
-        } catch (UnsupportedEncodingException e) {
-            myLog.e("Unsupported encoding: " + encoding);
-            strBytes = str.getBytes();
+            charset = Charset.forName(encoding);
+        } catch (Exception e) {
+            charset = Charset.defaultCharset();
         }
-        writeBytes(strBytes);
+        // Match String.getBytes(), which substitutes characters it can't map
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
     }
 
     protected Socket getSocket() {
@@ -436,12 +646,31 @@ public class SessionThread extends Thread {
         this.renameFrom = renameFrom;
     }
     
+    public long getRestartOffset() {
+        return restartOffset;
+    }
+
+    public void setRestartOffset(long restartOffset) {
+        this.restartOffset = restartOffset;
+    }
+
+    /**
+     * Returns the offset given by the last REST command and clears it, since
+     * a restart marker only applies to the transfer that follows it.
+     */
+    public long consumeRestartOffset() {
+        long offset = restartOffset;
+        restartOffset = 0;
+        return offset;
+    }
+
     public String getEncoding() {
         return encoding;
     }
 
     public void setEncoding(String encoding) {
         this.encoding = encoding;
+        this.replyEncoder = newEncoder(encoding);
     }
 
 }
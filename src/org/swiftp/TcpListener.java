@@ -32,11 +32,21 @@ import android.util.Log;
 public class TcpListener extends Thread {
 	ServerSocket listenSocket;  /*默认在port=2121上监听*/
 	FTPServerService ftpServerService;
+	SessionScheduler sessionScheduler;
 	MyLog myLog = new MyLog(getClass().getName());
 	
-	public TcpListener(ServerSocket listenSocket, FTPServerService ftpServerService) {
+	public TcpListener(ServerSocket listenSocket, FTPServerService ftpServerService,
+			SessionScheduler sessionScheduler) {
 		this.listenSocket = listenSocket;
 		this.ftpServerService = ftpServerService;
+		this.sessionScheduler = sessionScheduler;
+	}
+	
+	/**
+	 * For subclasses that schedule sessions themselves.
+	 */
+	protected TcpListener(ServerSocket listenSocket, FTPServerService ftpServerService) {
+		this(listenSocket, ftpServerService, null);
 	}
 	
 	public void quit() {
@@ -53,17 +63,16 @@ public class TcpListener extends Thread {
 			while(true) {
 				// accept client
 				Socket clientSocket = listenSocket.accept();
-				myLog.l(Log.INFO, "New connection, spawned thread");
-				// 
+				myLog.l(Log.INFO, "New connection, scheduling session");
+				// The scheduler runs the session on a pooled thread, or
+				// answers 421 and closes it if we're already at the limit
 				SessionThread newSession = new SessionThread(clientSocket,
 						new NormalDataSocketFactory(), 
 						SessionThread.Source.LOCAL);
-				newSession.start();
-				ftpServerService.registerSessionThread(newSession);
+				sessionScheduler.execute(newSession);
 			}
 		} catch (Exception e) {
 			myLog.l(Log.DEBUG, "Exception in TcpListener");
 		}
 	}
 }
-	